@@ -1,9 +1,9 @@
 
 public class Account{
-	private final int MAX_BALANCE = 99999999;
+	static final int MAX_BALANCE = 99999999;
 	private int accountNum,
-				balance;
-	private String name;
+				balance,
+				nameId; // id of the holder name in the shared NameDictionary
 	
 	/**
 	 * @param accountNum
@@ -13,10 +13,29 @@ public class Account{
 	 */
 	public Account(int accountNum, int balance, String name) {
 		this.accountNum = accountNum;
-		this.name = name;
+		this.nameId = NameDictionary.shared().intern(name);
 		this.balance = balance;
 	}
 	
+	/**
+	 * @param accountNum
+	 * @param balance
+	 * @param nameId
+	 * used to create accounts whose holder name is already in the name dictionary
+	 */
+	Account(int accountNum, int balance, int nameId) {
+		this.accountNum = accountNum;
+		this.nameId = nameId;
+		this.balance = balance;
+	}
+	
+	/**
+	 * @return a separate account with the same number, balance and name
+	 */
+	Account copy() {
+		return new Account(accountNum, balance, nameId);
+	}
+	
 	/**
 	 * @return balance
 	 * accessor for balance field
@@ -25,12 +44,20 @@ public class Account{
 		return balance;
 	}
 	
+	/**
+	 * @param balance
+	 * sets the balance directly, used when replaying recorded balances
+	 */
+	void setBalance(int balance){
+		this.balance = balance;
+	}
+	
 	/**
 	 * @param amount
 	 * @return success or failure of method
 	 */
 	public boolean increaseBalance(int amount){
-		if(balance + amount > MAX_BALANCE)
+		if(!canIncrease(amount))
 			return false;
 		else{
 			balance += amount;
@@ -45,7 +72,7 @@ public class Account{
 	 * is legal, completes the transaction and reports success
 	 */
 	public boolean decreaseBalance(int amount){
-		if(balance >= amount){
+		if(canDecrease(amount)){
 			balance -= amount;
 			return true;
 		}
@@ -53,6 +80,22 @@ public class Account{
 			return false;
 	}
 	
+	/**
+	 * @param amount
+	 * @return true if increaseBalance(amount) would succeed
+	 */
+	boolean canIncrease(int amount){
+		return balance + amount <= MAX_BALANCE;
+	}
+	
+	/**
+	 * @param amount
+	 * @return true if decreaseBalance(amount) would succeed
+	 */
+	boolean canDecrease(int amount){
+		return balance >= amount;
+	}
+	
 	/**
 	 * @return
 	 * accessor for account number
@@ -66,8 +109,17 @@ public class Account{
 	 * accessor for name field
 	 */
 	public String getName(){
-		return name;
-	}	
+		return NameDictionary.shared().name(nameId);
+	}
+	
+	/**
+	 * @return nameId
+	 * accessor for the dictionary id of the name, two accounts have
+	 * the same holder name exactly when their ids are equal
+	 */
+	public int getNameId(){
+		return nameId;
+	}
 	
 	/**
 	 * creates a string containing all account information in a format 
@@ -82,7 +134,7 @@ public class Account{
 		while(num.length() < 8){
 			num = "0" + num;
 		}
-		return num + " " + bal + " " + name;
+		return num + " " + bal + " " + getName();
 	}
 	
 }
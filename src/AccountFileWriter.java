@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * The AccountFileWriter writes the Master Accounts File and the valid accounts
+ * file for the Back Office.
+ *
+ * The accounts come sorted by account number and are split into chunks. The chunks
+ * are formatted in parallel into direct buffers and then written in order with
+ * gather writes on a FileChannel, so the output is the same bytes the
+ * sequential PrintWriter version produced:
+ *
+ * MAF records:		"%08d %03d name\n" in ascending account number order
+ * accounts file:	"%08d\n" for every real account, then "00000000"
+ *
+ * Files are written to a temporary file next to the target and moved over it
+ * when complete, so readers of the old file never see a half written one.
+ */
+public class AccountFileWriter {
+
+	// number of records formatted by one task
+	private static final int CHUNK = 8192;
+
+	// number of chunks formatted before they are written out, and of direct
+	// buffers a write formats them into, bounds the direct memory it holds
+	private static final int GROUP = Runtime.getRuntime().availableProcessors() * 4;
+
+	private static final byte[] END_OF_FILE = { '0', '0', '0', '0', '0', '0', '0', '0' };
+
+	/**
+	 * @param sorted - accounts in ascending account number order, as given
+	 * by AccountStore.Snapshot.toArray()
+	 * @param fileName - name of the master accounts file
+	 * @throws IOException
+	 *
+	 * writes account number, balance and holder name of every account
+	 */
+	public static void writeMasterAccounts(Account[] sorted, String fileName) throws IOException {
+		write(sorted, fileName, true, false);
+	}
+
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param fileName - name of the valid accounts file
+	 * @throws IOException
+	 *
+	 * writes the number of every account followed by the 00000000 end marker
+	 */
+	public static void writeAccounts(Account[] sorted, String fileName) throws IOException {
+		write(sorted, fileName, false, true);
+	}
+
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param fileName
+	 * @throws IOException
+	 *
+	 * writes the number of every account without the end marker, used for
+	 * the sections written by the partitions of a partitioned back office
+	 */
+	public static void writeAccountsSection(Account[] sorted, String fileName) throws IOException {
+		write(sorted, fileName, false, false);
+	}
+
+	/**
+	 * @param sections - files to join, in order
+	 * @param endMarker - true to finish the file with the 00000000 end marker
+	 * @param fileName - name of the joined file
+	 * @throws IOException
+	 *
+	 * joins the sections written by the partitions into one file
+	 */
+	public static void concatenate(String[] sections, boolean endMarker, String fileName) throws IOException {
+		Path target = Paths.get(fileName),
+			 temp = Paths.get(fileName + ".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (String section : sections) {
+				try (FileChannel in = FileChannel.open(Paths.get(section), StandardOpenOption.READ)) {
+					long position = 0, size = in.size();
+					while (position < size)
+						position += in.transferTo(position, size - position, out);
+				}
+			}
+			if (endMarker)
+				writeAll(out, new ByteBuffer[] { ByteBuffer.wrap(END_OF_FILE) });
+		}
+		replace(temp, target);
+	}
+
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param fileName
+	 * @param master - true for MAF records, false for account numbers only
+	 * @param endMarker - true to finish the file with the 00000000 end marker
+	 * @throws IOException
+	 */
+	private static void write(Account[] sorted, String fileName, boolean master, boolean endMarker) throws IOException {
+		int chunks = (sorted.length + CHUNK - 1) / CHUNK;
+		Path target = Paths.get(fileName),
+			 temp = Paths.get(fileName + ".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer[] pool = new ByteBuffer[GROUP]; // reused by every group, grown when a chunk does not fit
+			for (int first = 0; first < chunks; first += GROUP) {
+				int group = first, last = Math.min(chunks, first + GROUP);
+				ByteBuffer[] buffers = IntStream.range(first, last).parallel()
+						.mapToObj(i -> format(sorted, i * CHUNK, Math.min(sorted.length, (i + 1) * CHUNK), master,
+								pool, i - group))
+						.toArray(ByteBuffer[]::new);
+				writeAll(out, buffers);
+			}
+			if (endMarker)
+				writeAll(out, new ByteBuffer[] { ByteBuffer.wrap(END_OF_FILE) });
+		}
+		replace(temp, target);
+	}
+
+	/**
+	 * @param temp - completely written file
+	 * @param target
+	 * @throws IOException
+	 *
+	 * moves the file over the target in one step where the file system allows
+	 * it, the other files of a session are replaced the same way
+	 */
+	static void replace(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @param out
+	 * @param buffers
+	 * @throws IOException
+	 *
+	 * gather writes the buffers in order, skipping the buffers that are
+	 * already drained after each partial write
+	 */
+	private static void writeAll(FileChannel out, ByteBuffer[] buffers) throws IOException {
+		int next = 0;
+		while (next < buffers.length) {
+			out.write(buffers, next, buffers.length - next);
+			while (next < buffers.length && !buffers[next].hasRemaining())
+				next++;
+		}
+	}
+
+	/**
+	 * @param sorted
+	 * @param from - first index, inclusive
+	 * @param to - last index, exclusive
+	 * @param master
+	 * @param pool - direct buffers of the write, one per chunk of a group
+	 * @param slot - place of the chunk's buffer in the pool
+	 * @return the pooled buffer holding the formatted records, ready to be
+	 * written, a new one is allocated and pooled only if the old one is too
+	 * small
+	 */
+	private static ByteBuffer format(Account[] sorted, int from, int to, boolean master, ByteBuffer[] pool, int slot) {
+		NameDictionary names = NameDictionary.shared();
+		int size = 0;
+		for (int i = from; i < to; i++) {
+			Account account = sorted[i];
+			if (master)
+				size += width(account.getAccountNum(), 8) + 1 + width(account.getBalance(), 3) + 1
+						+ names.length(account.getNameId()) + 1;
+			else if (account.getAccountNum() >= 10000000)
+				size += width(account.getAccountNum(), 0) + 1;
+		}
+
+		ByteBuffer buffer = pool[slot];
+		if (buffer == null || buffer.capacity() < size)
+			pool[slot] = buffer = ByteBuffer.allocateDirect(size);
+		buffer.clear().limit(size);
+		for (int i = from; i < to; i++) {
+			Account account = sorted[i];
+			if (master) {
+				putPadded(buffer, account.getAccountNum(), 8);
+				buffer.put((byte) ' ');
+				putPadded(buffer, account.getBalance(), 3);
+				buffer.put((byte) ' ');
+				names.copyTo(account.getNameId(), buffer);
+				buffer.put((byte) '\n');
+			} else if (account.getAccountNum() >= 10000000) {
+				putPadded(buffer, account.getAccountNum(), 0);
+				buffer.put((byte) '\n');
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param value
+	 * @param pad - minimum number of characters, short values get leading zeros
+	 * @return number of characters putPadded writes for the value
+	 */
+	private static int width(int value, int pad) {
+		if (value < 0)
+			return Math.max(pad, Integer.toString(value).length());
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return Math.max(pad, digits);
+	}
+
+	/**
+	 * @param buffer
+	 * @param value
+	 * @param pad
+	 *
+	 * writes the value in decimal with leading zeros, negative values are
+	 * padded in front of the sign the same way Account.toString does
+	 */
+	private static void putPadded(ByteBuffer buffer, int value, int pad) {
+		int width = width(value, pad),
+			end = buffer.position() + width;
+		if (value < 0) {
+			String digits = Integer.toString(value);
+			for (int i = digits.length(); i < width; i++)
+				buffer.put((byte) '0');
+			for (int i = 0; i < digits.length(); i++)
+				buffer.put((byte) digits.charAt(i));
+			return;
+		}
+		for (int i = end - 1; i >= buffer.position(); i--) {
+			buffer.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		buffer.position(end);
+	}
+}
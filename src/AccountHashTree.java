@@ -0,0 +1,457 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The AccountHashTree is a hash tree over account number ranges of the
+ * valid accounts file or the Master Accounts File, used to check that two
+ * such files hold the same accounts without diffing them.
+ *
+ * The account numbers 0 .. 2^27-1 (every 8 digit number) are split into
+ * LEAVES ranges of 2^13 numbers. A leaf holds the sum of the hashes of the
+ * accounts in its range, every other node the hash of its two children, so
+ * two files hold the same accounts in a range exactly when (up to hash
+ * collisions, the hashes detect drift, not tampering) the node of that range
+ * is equal. Nodes are numbered as a heap: the root is 1 and the children of
+ * node i are 2i and 2i+1.
+ *
+ * Every node has two hashes, one over the account numbers only and one over
+ * the full MAF records. An accounts file only has the first, so a MAF
+ * compared with an accounts file is compared on account numbers.
+ *
+ * Comparing walks down from the root one level at a time and only asks for
+ * the children of nodes that differ, so a handful of diverging ranges is
+ * found by exchanging a few nodes per tree level, also when the other tree
+ * is on another site (see serve and RemoteTree).
+ *
+ * The Back Office writes the tree of every accounts file and MAF it writes
+ * next to it, acc.txt produces acc.mtree. A tree file is only used when it
+ * is named, a given accounts file or MAF is always hashed from what it holds
+ * now, a tree next to it may be older than the file (copied by hand, or left
+ * by a failed run).
+ *
+ * Usage:
+ * AccountHashTree compare <file or tree> <file, tree or host:port>
+ * AccountHashTree serve <file or tree> <port>
+ */
+public class AccountHashTree {
+
+	private static final int MAGIC = 0x53424d31; // "SBM1"
+
+	private static final int RANGE_SHIFT = 13,
+							 DEPTH = 14,
+							 LEAVES = 1 << DEPTH;
+
+	private final boolean records; // false when only account numbers are hashed
+	private final long[] keys = new long[2 * LEAVES],
+						 values = new long[2 * LEAVES];
+
+	private AccountHashTree(boolean records) {
+		this.records = records;
+	}
+
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param records - true to hash the MAF records, false for account numbers only
+	 * @return the tree of the accounts
+	 *
+	 * the leaves are hashed in parallel, every leaf finds its accounts by
+	 * binary search
+	 */
+	public static AccountHashTree build(Account[] sorted, boolean records) {
+		AccountHashTree tree = new AccountHashTree(records);
+		IntStream.range(0, LEAVES).parallel().forEach(leaf -> {
+			long keys = 0, values = 0;
+			for (int i = first(sorted, leaf << RANGE_SHIFT); i < sorted.length
+					&& leaf(sorted[i].getAccountNum()) == leaf; i++) {
+				Account account = sorted[i];
+				if (account.getAccountNum() < 10000000) // end of file marker, not an account
+					continue;
+				keys += keyHash(account.getAccountNum());
+				if (records)
+					values += recordHash(account.getAccountNum(), account.getBalance(), account.getName());
+			}
+			tree.keys[LEAVES + leaf] = keys;
+			tree.values[LEAVES + leaf] = records ? values : keys;
+		});
+		tree.hashInnerNodes();
+		return tree;
+	}
+
+	/**
+	 * @param fileName - accounts file or Master Accounts File
+	 * @return the tree of the file
+	 * @throws IOException
+	 *
+	 * the kind of file is told by its first record, MAF records have a
+	 * balance and a name after the account number
+	 */
+	public static AccountHashTree build(String fileName) throws IOException {
+		try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+			AccountHashTree tree = null;
+			String cur;
+			while ((cur = br.readLine()) != null) {
+				String[] line = cur.split(" ", 3);
+				if (tree == null)
+					tree = new AccountHashTree(line.length == 3);
+				int num = Integer.parseInt(line[0]);
+				if (num < 10000000)
+					continue;
+				int leaf = LEAVES + leaf(num);
+				tree.keys[leaf] += keyHash(num);
+				if (tree.records)
+					tree.values[leaf] += recordHash(num, Integer.parseInt(line[1]), line[2]);
+				else
+					tree.values[leaf] += keyHash(num);
+			}
+			if (tree == null)
+				tree = new AccountHashTree(false);
+			tree.hashInnerNodes();
+			return tree;
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("not an accounts file: " + fileName);
+		}
+	}
+
+	/**
+	 * @param fileName - accounts file, Master Accounts File or tree file
+	 * @return the tree read from a tree file, or built from the contents of
+	 * an accounts file or MAF
+	 * @throws IOException
+	 */
+	public static AccountHashTree load(String fileName) throws IOException {
+		if (fileName.endsWith(".mtree"))
+			return read(fileName);
+		return build(fileName);
+	}
+
+	/**
+	 * @param fileName - name of an accounts file or master accounts file
+	 * @return name of its tree file, acc.txt produces acc.mtree
+	 */
+	public static String treeFileName(String fileName) {
+		if (fileName.endsWith(".txt"))
+			fileName = fileName.substring(0, fileName.length() - 4);
+		return fileName + ".mtree";
+	}
+
+	private void hashInnerNodes() {
+		for (int node = LEAVES - 1; node >= 1; node--) {
+			keys[node] = combine(keys[2 * node], keys[2 * node + 1]);
+			values[node] = combine(values[2 * node], values[2 * node + 1]);
+		}
+	}
+
+	/**
+	 * @param fileName - name of the tree file
+	 * @throws IOException
+	 *
+	 * written to a temporary file that is moved over the old tree when complete
+	 */
+	public void write(String fileName) throws IOException {
+		Path target = Paths.get(fileName),
+			 temp = Paths.get(fileName + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(DEPTH);
+			out.writeBoolean(records);
+			for (int node = 1; node < 2 * LEAVES; node++) {
+				out.writeLong(keys[node]);
+				out.writeLong(values[node]);
+			}
+		}
+		AccountFileWriter.replace(temp, target);
+	}
+
+	/**
+	 * @param fileName - name of the tree file
+	 * @return the tree
+	 * @throws IOException if the file is not a tree of this depth
+	 */
+	public static AccountHashTree read(String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(Paths.get(fileName)), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != DEPTH)
+				throw new IOException("not an account hash tree: " + fileName);
+			AccountHashTree tree = new AccountHashTree(in.readBoolean());
+			for (int node = 1; node < 2 * LEAVES; node++) {
+				tree.keys[node] = in.readLong();
+				tree.values[node] = in.readLong();
+			}
+			return tree;
+		}
+	}
+
+//-----------------------Comparing----------------------
+
+	/**
+	 * the nodes of a tree, local or on another site
+	 */
+	interface Nodes {
+		/**
+		 * @return true if the tree hashes the MAF records
+		 */
+		boolean records() throws IOException;
+
+		/**
+		 * @param nodes - node numbers
+		 * @param records - true for the record hashes, false for the account number hashes
+		 * @return the hashes of the nodes
+		 */
+		long[] hashes(int[] nodes, boolean records) throws IOException;
+	}
+
+	private Nodes nodes() {
+		return new Nodes() {
+			public boolean records() {
+				return records;
+			}
+
+			public long[] hashes(int[] nodes, boolean records) {
+				long[] hashes = new long[nodes.length];
+				for (int i = 0; i < nodes.length; i++)
+					hashes[i] = records ? values[nodes[i]] : keys[nodes[i]];
+				return hashes;
+			}
+		};
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return the diverging ranges as { first account number, last account
+	 * number } pairs, adjacent ranges joined, empty if the trees are equal
+	 * @throws IOException
+	 *
+	 * compares level by level, only the children of differing nodes are
+	 * fetched from the next level
+	 */
+	static List<int[]> compare(Nodes a, Nodes b) throws IOException {
+		boolean records = a.records() && b.records();
+		int[] level = { 1 };
+		for (int depth = 0; level.length > 0; depth++) {
+			long[] left = a.hashes(level, records),
+				   right = b.hashes(level, records);
+			int differing = 0;
+			for (int i = 0; i < level.length; i++) {
+				if (left[i] != right[i])
+					level[differing++] = level[i];
+			}
+			if (depth == DEPTH)
+				return ranges(level, differing);
+			int[] children = new int[differing * 2];
+			for (int i = 0; i < differing; i++) {
+				children[2 * i] = 2 * level[i];
+				children[2 * i + 1] = 2 * level[i] + 1;
+			}
+			level = children;
+		}
+		return new ArrayList<int[]>();
+	}
+
+	private static List<int[]> ranges(int[] leaves, int count) {
+		List<int[]> ranges = new ArrayList<int[]>();
+		for (int i = 0; i < count; i++) {
+			int first = (leaves[i] - LEAVES) << RANGE_SHIFT,
+				last = first + (1 << RANGE_SHIFT) - 1;
+			int[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (previous != null && previous[1] + 1 == first)
+				previous[1] = last;
+			else
+				ranges.add(new int[] { first, last });
+		}
+		return ranges;
+	}
+
+	/**
+	 * @param port
+	 * @throws IOException
+	 *
+	 * answers node requests of other sites, one connection at a time:
+	 *
+	 * on connect the server sends		TREE <true if the records are hashed>
+	 * NODES <records> <node> ...		the hashes of the nodes, in hex
+	 * QUIT								closes the connection
+	 */
+	public void serve(int port) throws IOException {
+		try (ServerSocket server = new ServerSocket(port)) {
+			System.out.println("Serving account hash tree on port " + server.getLocalPort());
+			while (true) {
+				try (Socket socket = server.accept()) {
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					PrintWriter out = new PrintWriter(
+							new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+					out.write("TREE " + records + "\n");
+					out.flush();
+					String request;
+					while ((request = in.readLine()) != null && request.startsWith("NODES ")) {
+						String[] args = request.split(" ");
+						boolean recordHashes = Boolean.parseBoolean(args[1]);
+						StringBuilder reply = new StringBuilder("HASHES");
+						for (int i = 2; i < args.length; i++) {
+							int node = Integer.parseInt(args[i]);
+							long hash = node < 1 || node >= 2 * LEAVES ? 0
+									: recordHashes ? values[node] : keys[node];
+							reply.append(' ').append(Long.toHexString(hash));
+						}
+						out.write(reply + "\n");
+						out.flush();
+					}
+				} catch (IOException | NumberFormatException e) {
+					System.out.println("Connection closed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * tree served by another site
+	 */
+	static class RemoteTree implements Nodes, AutoCloseable {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintWriter out;
+		private final boolean records;
+
+		RemoteTree(String host, int port) throws IOException {
+			socket = new Socket(host, port);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			String hello = in.readLine();
+			if (hello == null || !hello.startsWith("TREE "))
+				throw new IOException("not an account hash tree server: " + host + ":" + port);
+			records = Boolean.parseBoolean(hello.substring(5));
+		}
+
+		public boolean records() {
+			return records;
+		}
+
+		public long[] hashes(int[] nodes, boolean records) throws IOException {
+			StringBuilder request = new StringBuilder("NODES ").append(records);
+			for (int node : nodes)
+				request.append(' ').append(node);
+			out.write(request + "\n");
+			out.flush();
+			String reply = in.readLine();
+			if (reply == null)
+				throw new IOException("connection closed");
+			String[] fields = reply.split(" ");
+			if (fields.length != nodes.length + 1)
+				throw new IOException("bad reply: " + reply);
+			long[] hashes = new long[nodes.length];
+			for (int i = 0; i < nodes.length; i++)
+				hashes[i] = Long.parseUnsignedLong(fields[i + 1], 16);
+			return hashes;
+		}
+
+		public void close() throws IOException {
+			out.write("QUIT\n");
+			out.flush();
+			socket.close();
+		}
+	}
+
+//-----------------------Hashing----------------------
+
+	private static int leaf(int accountNum) {
+		return Math.max(0, Math.min(LEAVES - 1, accountNum >> RANGE_SHIFT));
+	}
+
+	/**
+	 * @return index of the first account numbered at least accountNum
+	 */
+	private static int first(Account[] sorted, int accountNum) {
+		int low = 0, high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid].getAccountNum() < accountNum)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private static long keyHash(int accountNum) {
+		return mix(accountNum * 0x9e3779b97f4a7c15L + 1);
+	}
+
+	private static long recordHash(int accountNum, int balance, String name) {
+		long hash = 0xcbf29ce484222325L; // FNV-1a over the name bytes
+		for (byte b : name.getBytes(StandardCharsets.UTF_8))
+			hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+		return mix(hash ^ mix(keyHash(accountNum) + balance));
+	}
+
+	private static long combine(long left, long right) {
+		return mix(left * 0x9e3779b97f4a7c15L + Long.rotateLeft(right, 29) + 3);
+	}
+
+	// finalizer of SplitMix64
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * compare <file or tree> <file, tree or host:port> prints the diverging
+	 * account number ranges
+	 * serve <file or tree> <port> answers the compare requests of other sites
+	 */
+	public static void main(String[] args) {
+		try {
+			AccountHashTree local = load(args[1]);
+			if (args[0].equals("serve")) {
+				local.serve(Integer.parseInt(args[2]));
+				return;
+			}
+			if (!args[0].equals("compare"))
+				throw new ArrayIndexOutOfBoundsException();
+			List<int[]> ranges;
+			int colon = args[2].lastIndexOf(':');
+			if (colon > 0 && !Files.exists(Paths.get(args[2]))) {
+				try (RemoteTree remote = new RemoteTree(args[2].substring(0, colon),
+						Integer.parseInt(args[2].substring(colon + 1)))) {
+					ranges = compare(local.nodes(), remote);
+				}
+			} else {
+				ranges = compare(local.nodes(), load(args[2]).nodes());
+			}
+			if (ranges.isEmpty()) {
+				System.out.println("SAME");
+			} else {
+				for (int[] range : ranges)
+					System.out.println(String.format("DIFFERENT %08d %08d", range[0], range[1]));
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not compare: " + e.getMessage());
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An AccountOverlay is a writable layer over a loaded AccountStore for what
+ * if runs of the Back Office: transactions are applied to the overlay as if
+ * it were the store, while the store underneath is never changed.
+ *
+ * The overlay only holds the accounts the run changed: an account is copied
+ * from the store the first time it is updated, created accounts are added
+ * and deleted ones are remembered as removed. Untouched accounts are read
+ * straight from the store and never copied, so a run over a few accounts
+ * of a large MAF costs memory for those accounts only.
+ *
+ * The overlay is only Accounts, not a store: it has no snapshots, balance
+ * rules or delta, a what if run writes its results from the changed
+ * accounts, see changedAccounts().
+ */
+public class AccountOverlay implements Accounts {
+
+	private final Accounts base;
+
+	// changed accounts by number, null for an account the run removed
+	private final Map<Integer, Account> changes = new HashMap<Integer, Account>();
+	private int size;
+
+	/**
+	 * @param base - store the overlay reads untouched accounts from, it must
+	 * not be changed while the overlay is in use
+	 */
+	public AccountOverlay(Accounts base) {
+		this.base = base;
+		size = base.size();
+	}
+
+	@Override
+	public Account get(int accountNum) {
+		Integer key = accountNum;
+		if (changes.containsKey(key))
+			return changes.get(key);
+		return base.get(accountNum);
+	}
+
+	@Override
+	public Account update(int accountNum) {
+		Integer key = accountNum;
+		if (changes.containsKey(key))
+			return changes.get(key);
+		Account account = base.get(accountNum);
+		if (account == null)
+			return null;
+		Account copy = account.copy();
+		changes.put(key, copy);
+		return copy;
+	}
+
+	@Override
+	public void put(Account account) {
+		if (get(account.getAccountNum()) == null)
+			size++;
+		changes.put(account.getAccountNum(), account);
+	}
+
+	@Override
+	public Account remove(int accountNum) {
+		Account removed = get(accountNum);
+		if (removed == null)
+			return null;
+		changes.put(accountNum, null);
+		size--;
+		return removed;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the account numbers the run created, updated or removed, in
+	 * ascending order, compare get() with the store's get() to see how
+	 */
+	public int[] changedAccounts() {
+		int[] changed = new int[changes.size()];
+		int next = 0;
+		for (int accountNum : changes.keySet())
+			changed[next++] = accountNum;
+		Arrays.sort(changed);
+		return changed;
+	}
+}
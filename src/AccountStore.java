@@ -0,0 +1,399 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The AccountStore holds the accounts of the Back Office by account number and
+ * can hand out point in time snapshots of them in constant time.
+ *
+ * Accounts are kept in pages of 1024 consecutive account numbers, every page
+ * holds its accounts sorted in two parallel arrays and the pages are found
+ * through a directory indexed by accountNum >>> PAGE_SHIFT. Walking the
+ * directory in order therefore visits the accounts in ascending order.
+ *
+ * Taking a snapshot only captures the current directory and starts a new
+ * epoch. Pages and the directory remember the epoch they were created in,
+ * and the first write to one of them in a later epoch copies it (the page's
+ * accounts included) before changing it. A snapshot is therefore never
+ * changed after it is taken and untouched pages are shared, never copied.
+ *
+ * The store also remembers which account numbers were created, changed or
+ * removed since clearDirty() was last called, so only those accounts have
+ * to be written out as a delta.
+ *
+ * apply() changes the balances of a whole range of accounts at once, for
+ * month end interest and fee postings, working on the pages in parallel.
+ *
+ * The store has a single writer, snapshot() must be called from the thread
+ * that changes the store. Snapshots can be read from any thread once handed
+ * over.
+ */
+public class AccountStore implements Accounts {
+
+	private static final int PAGE_SHIFT = 10;
+
+	private Page[] directory = new Page[16];
+	private int directoryEpoch,
+				epoch,
+				size;
+
+	// account numbers changed since clearDirty(), marked once each in dirtyMarks
+	private int[] dirty = new int[64];
+	private int dirtyCount;
+	private final BitSet dirtyMarks = new BitSet();
+
+	/**
+	 * @param accountNum
+	 * @return the account, or null if it does not exist
+	 *
+	 * the returned account must not be changed, use update(int) to get an
+	 * account that can be changed
+	 */
+	public Account get(int accountNum) {
+		return find(directory, accountNum);
+	}
+
+	/**
+	 * @param accountNum
+	 * @return the account, or null if it does not exist
+	 *
+	 * returns an account that can be changed, its page is copied first if a
+	 * snapshot still shares it and the account is marked as changed, only
+	 * call it for a change that is made, see increaseBalance, decreaseBalance
+	 * and setBalance
+	 */
+	public Account update(int accountNum) {
+		if (get(accountNum) == null)
+			return null;
+		markDirty(accountNum);
+		return writablePage(accountNum).get(accountNum);
+	}
+
+	/**
+	 * @param account
+	 *
+	 * adds the account, replacing any account with the same number
+	 */
+	public void put(Account account) {
+		markDirty(account.getAccountNum());
+		if (writablePage(account.getAccountNum()).put(account))
+			size++;
+	}
+
+	/**
+	 * @param accountNum
+	 * @return the removed account, or null if it did not exist
+	 */
+	public Account remove(int accountNum) {
+		if (get(accountNum) == null)
+			return null;
+		markDirty(accountNum);
+		size--;
+		return writablePage(accountNum).remove(accountNum);
+	}
+
+	/**
+	 * @return number of accounts held
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the account numbers created, changed or removed since the last
+	 * call to clearDirty(), in ascending order
+	 */
+	public int[] dirtyAccounts() {
+		int[] sorted = Arrays.copyOf(dirty, dirtyCount);
+		Arrays.sort(sorted);
+		int unique = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (unique == 0 || sorted[unique - 1] != sorted[i])
+				sorted[unique++] = sorted[i];
+		}
+		return Arrays.copyOf(sorted, unique);
+	}
+
+	/**
+	 * forgets which accounts were changed, called once the changes are written
+	 */
+	public void clearDirty() {
+		dirty = new int[64];
+		dirtyCount = 0;
+		dirtyMarks.clear();
+	}
+
+	/**
+	 * @param accountNums
+	 * marks the accounts as changed, used to restore the changes recorded in
+	 * a checkpoint
+	 */
+	void markDirty(int[] accountNums) {
+		for (int accountNum : accountNums)
+			markDirty(accountNum);
+	}
+
+	private void markDirty(int accountNum) {
+		if (accountNum >= 0) {
+			if (dirtyMarks.get(accountNum))
+				return;
+			dirtyMarks.set(accountNum);
+		}
+		if (dirtyCount == dirty.length)
+			dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+		dirty[dirtyCount++] = accountNum;
+	}
+
+	/**
+	 * @param low - lowest account number, inclusive
+	 * @param high - highest account number, inclusive
+	 * @param rule
+	 * @return totals of the changes made and refused
+	 *
+	 * applies the rule to every account in the range, the pages in parallel
+	 * a change is made with increaseBalance or decreaseBalance, so a change
+	 * is refused exactly when a deposit or withdraw of the same amount would
+	 * be, the end of file marker (numbers below 10000000) is left alone
+	 */
+	public BalanceRule.Result apply(int low, int high, BalanceRule rule) {
+		low = Math.max(low, 10000000);
+		if (low > high)
+			return new BalanceRule.Result();
+		int first = low >>> PAGE_SHIFT,
+			last = Math.min(directory.length - 1, high >>> PAGE_SHIFT);
+		if (directoryEpoch != epoch) {
+			directory = directory.clone();
+			directoryEpoch = epoch;
+		}
+		final Page[] pages = directory;
+		final int current = epoch, from = low, to = high;
+		Changes[] changes = IntStream.rangeClosed(first, last).parallel().mapToObj(i -> {
+			if (pages[i] == null)
+				return null;
+			if (pages[i].epoch != current)
+				pages[i] = pages[i].copy(current);
+			return pages[i].apply(from, to, rule);
+		}).toArray(Changes[]::new);
+
+		BalanceRule.Result result = new BalanceRule.Result();
+		for (Changes page : changes) {
+			if (page != null) {
+				result.combine(page.result);
+				for (int i = 0; i < page.count; i++)
+					markDirty(page.changed[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return a view of the accounts as they are now, later changes to the
+	 * store are not visible through it
+	 */
+	public Snapshot snapshot() {
+		epoch++;
+		return new Snapshot(directory, size);
+	}
+
+	/**
+	 * @param accountNum
+	 * @return the page for the account number, created or copied so it
+	 * belongs to the current epoch
+	 */
+	private Page writablePage(int accountNum) {
+		int index = accountNum >>> PAGE_SHIFT;
+		if (index >= directory.length) {
+			directory = Arrays.copyOf(directory, Math.max(index + 1, directory.length * 2));
+			directoryEpoch = epoch;
+		}
+
+		Page page = directory[index];
+		if (page == null || page.epoch != epoch) {
+			page = page == null ? new Page(epoch) : page.copy(epoch);
+			if (directoryEpoch != epoch) {
+				directory = directory.clone();
+				directoryEpoch = epoch;
+			}
+			directory[index] = page;
+		}
+		return page;
+	}
+
+	private static Account find(Page[] directory, int accountNum) {
+		int index = accountNum >>> PAGE_SHIFT;
+		if (index >= directory.length || directory[index] == null)
+			return null;
+		return directory[index].get(accountNum);
+	}
+
+	/**
+	 * read only point in time view of the store
+	 */
+	public static class Snapshot {
+		private final Page[] directory;
+		private final int size;
+
+		private Snapshot(Page[] directory, int size) {
+			this.directory = directory;
+			this.size = size;
+		}
+
+		/**
+		 * @param accountNum
+		 * @return the account as it was when the snapshot was taken, or null
+		 */
+		public Account get(int accountNum) {
+			return find(directory, accountNum);
+		}
+
+		/**
+		 * @return number of accounts in the snapshot
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the accounts in ascending account number order
+		 */
+		public Account[] toArray() {
+			Account[] all = new Account[size];
+			int next = 0;
+			for (Page page : directory) {
+				if (page != null) {
+					System.arraycopy(page.accounts, 0, all, next, page.size);
+					next += page.size;
+				}
+			}
+			return all;
+		}
+
+		/**
+		 * @return stream of the accounts, pages split well for parallel streams
+		 */
+		public Stream<Account> stream() {
+			return Arrays.stream(directory).filter(Objects::nonNull)
+					.flatMap(page -> Arrays.stream(page.accounts, 0, page.size));
+		}
+	}
+
+	/**
+	 * accounts of 1024 consecutive account numbers, sorted by number
+	 */
+	private static class Page {
+		private final int epoch;
+		private int[] numbers;
+		private Account[] accounts;
+		private int size;
+
+		private Page(int epoch) {
+			this(epoch, new int[4], new Account[4], 0);
+		}
+
+		private Page(int epoch, int[] numbers, Account[] accounts, int size) {
+			this.epoch = epoch;
+			this.numbers = numbers;
+			this.accounts = accounts;
+			this.size = size;
+		}
+
+		private Account get(int accountNum) {
+			int i = Arrays.binarySearch(numbers, 0, size, accountNum);
+			return i < 0 ? null : accounts[i];
+		}
+
+		/**
+		 * @return true if the account was added, false if it replaced one
+		 */
+		private boolean put(Account account) {
+			int i = Arrays.binarySearch(numbers, 0, size, account.getAccountNum());
+			if (i >= 0) {
+				accounts[i] = account;
+				return false;
+			}
+			i = -i - 1;
+			if (size == numbers.length) {
+				numbers = Arrays.copyOf(numbers, size * 2);
+				accounts = Arrays.copyOf(accounts, size * 2);
+			}
+			System.arraycopy(numbers, i, numbers, i + 1, size - i);
+			System.arraycopy(accounts, i, accounts, i + 1, size - i);
+			numbers[i] = account.getAccountNum();
+			accounts[i] = account;
+			size++;
+			return true;
+		}
+
+		private Account remove(int accountNum) {
+			int i = Arrays.binarySearch(numbers, 0, size, accountNum);
+			Account removed = accounts[i];
+			System.arraycopy(numbers, i + 1, numbers, i, size - i - 1);
+			System.arraycopy(accounts, i + 1, accounts, i, size - i - 1);
+			accounts[--size] = null;
+			return removed;
+		}
+
+		/**
+		 * @param low - lowest account number, inclusive
+		 * @param high - highest account number, inclusive
+		 * @param rule
+		 * @return the totals and the accounts changed
+		 */
+		private Changes apply(int low, int high, BalanceRule rule) {
+			Changes changes = new Changes();
+			for (int i = 0; i < size; i++) {
+				if (numbers[i] < low || numbers[i] > high)
+					continue;
+				Account account = accounts[i];
+				int change = rule.change(account.getBalance());
+				changes.result.accounts++;
+				if (change > 0) {
+					if (account.increaseBalance(change)) {
+						changes.result.credited++;
+						changes.result.creditVolume += change;
+						changes.add(numbers[i]);
+					} else {
+						changes.result.overMaximum++;
+					}
+				} else if (change < 0) {
+					if (account.decreaseBalance(-change)) {
+						changes.result.debited++;
+						changes.result.debitVolume -= change;
+						changes.add(numbers[i]);
+					} else {
+						changes.result.overdrawn++;
+					}
+				}
+			}
+			return changes;
+		}
+
+		/**
+		 * @param epoch
+		 * @return copy of the page, and of its accounts, for the given epoch
+		 */
+		private Page copy(int epoch) {
+			Account[] copies = new Account[accounts.length];
+			for (int i = 0; i < size; i++)
+				copies[i] = accounts[i].copy();
+			return new Page(epoch, numbers.clone(), copies, size);
+		}
+	}
+
+	/**
+	 * what applying a rule did to one page
+	 */
+	private static class Changes {
+		private final BalanceRule.Result result = new BalanceRule.Result();
+		private int[] changed = new int[16];
+		private int count;
+
+		private void add(int accountNum) {
+			if (count == changed.length)
+				changed = Arrays.copyOf(changed, count * 2);
+			changed[count++] = accountNum;
+		}
+	}
+}
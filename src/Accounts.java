@@ -0,0 +1,92 @@
+/**
+ * Accounts are what transactions are applied to: accounts looked up, changed,
+ * created and removed by account number.
+ *
+ * The AccountStore holds the accounts of a run, an AccountOverlay layers the
+ * changes of a what if run over a store without changing it.
+ */
+public interface Accounts {
+
+	/**
+	 * @param accountNum
+	 * @return the account, or null if it does not exist
+	 *
+	 * the returned account must not be changed, use update(int) to get an
+	 * account that can be changed
+	 */
+	Account get(int accountNum);
+
+	/**
+	 * @param accountNum
+	 * @return the account, or null if it does not exist
+	 *
+	 * returns an account that can be changed and remembers it as changed,
+	 * only call it for a change that is made, see increaseBalance,
+	 * decreaseBalance and setBalance
+	 */
+	Account update(int accountNum);
+
+	/**
+	 * @param account
+	 *
+	 * adds the account, replacing any account with the same number
+	 */
+	void put(Account account);
+
+	/**
+	 * @param accountNum
+	 * @return the removed account, or null if it did not exist
+	 */
+	Account remove(int accountNum);
+
+	/**
+	 * @return number of accounts held
+	 */
+	int size();
+
+	/**
+	 * @param accountNum
+	 * @return true if the account exists
+	 */
+	default boolean containsKey(int accountNum) {
+		return get(accountNum) != null;
+	}
+
+	/**
+	 * @param accountNum
+	 * @param amount
+	 * @return false if the account does not exist or the increase is
+	 * refused, in which case nothing is copied or marked as changed
+	 */
+	default boolean increaseBalance(int accountNum, int amount) {
+		Account account = get(accountNum);
+		if (account == null || !account.canIncrease(amount))
+			return false;
+		return update(accountNum).increaseBalance(amount);
+	}
+
+	/**
+	 * @param accountNum
+	 * @param amount
+	 * @return false if the account does not exist or the decrease is
+	 * refused, in which case nothing is copied or marked as changed
+	 */
+	default boolean decreaseBalance(int accountNum, int amount) {
+		Account account = get(accountNum);
+		if (account == null || !account.canDecrease(amount))
+			return false;
+		return update(accountNum).decreaseBalance(amount);
+	}
+
+	/**
+	 * @param accountNum - an existing account
+	 * @param balance
+	 *
+	 * sets the balance, the account is only copied and marked as changed if
+	 * the balance differs
+	 */
+	default void setBalance(int accountNum, int balance) {
+		if (get(accountNum).getBalance() != balance)
+			update(accountNum).setBalance(balance);
+	}
+}
@@ -1,15 +1,33 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.Queue;
-import java.util.LinkedList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 
 
 /**
@@ -22,7 +40,7 @@ import java.util.Map;
 
 
 /**
- * The BackOffice Class holds a map of accounts that uses the account number as the key
+ * The BackOffice Class holds a store of accounts that uses the account number as the key
  * It also holds a queue of all the transactions to be executed.
  * As soon as the transaction is executed, it is popped off the stack.
  * The methods inside this class handle processing each transaction and 
@@ -30,13 +48,91 @@ import java.util.Map;
  */
 public class BackOffice_NCR {
 	
-	// Holds all the account objects in a hash map
-	// uses account number as the key
-	private Map<Integer, Account> accounts;
+	// Holds all the account objects by account number
+	// and hands out point in time snapshots of them
+	private AccountStore store;
+
+	// Accounts the transactions are applied to, the store
+	// or, in a dry run, an AccountOverlay of it
+	private Accounts accounts;
 
 	// Holds all the merged transactions to be executed
 	// in FIFO order
-	private Queue<String> transactions;
+	private TransactionQueue transactions;
+
+	// accumulates the daily totals written at the end of the session
+	private EndOfDayReport report;
+
+	// binary record of every applied or rejected transaction,
+	// null when transactions are not journaled
+	private TransactionJournal journal;
+
+	// snapshot requests from other threads, served by the thread applying
+	// transactions between two transactions so no request ever sees a
+	// half applied one
+	private final Queue<CompletableFuture<AccountStore.Snapshot>> snapshotRequests =
+			new ConcurrentLinkedQueue<CompletableFuture<AccountStore.Snapshot>>();
+	private boolean applying; // guarded by snapshotRequests
+
+	// range of account numbers loaded from the master accounts file,
+	// narrowed when running as one partition of a partitioned back office
+	private int low = Integer.MIN_VALUE,
+				high = Integer.MAX_VALUE;
+
+	// a checkpoint is written every CHECKPOINT_INTERVAL transactions
+	private static final int CHECKPOINT_INTERVAL = 1 << 20;
+
+	// byte length of every queued transaction line, including its line break,
+	// used to know the summary file offset of the next unapplied transaction
+	private int[] lineBytes = new int[1024];
+	private int linesRead;
+	private long mtsfOffset,	// next unapplied byte of the summary file
+				 linesApplied;	// transactions applied, counting those before a resumed checkpoint
+
+	// resumed checkpoint, null when the run started from the master accounts file
+	private Checkpoint resumed;
+
+	// input files recorded in checkpoints, see Checkpoint, the stamps are null
+	// and the summary file is not hashed when the run can not be resumed
+	private String MAFStamp, MTSFStamp, summaryFile;
+
+	// hash of the summary file up to hashedOffset, continued by the
+	// checkpoint writer
+	private CRC32C appliedHash = new CRC32C();
+	private long hashedOffset;
+
+	// set once the output files of the current run have been written, and
+	// once the master accounts file itself was written
+	private boolean sessionEnded,
+					MAFWritten;
+
+	// most consecutive deposits and withdrawals of one account applied to a
+	// local balance before it is stored back, see applyRun
+	private static final int COALESCE_WINDOW = 4096;
+
+	// transactions covered by one ApplyBatch flight recorder event, and the
+	// event being filled, null when the event is not recorded
+	private static final int APPLY_BATCH = 1 << 16;
+	private SimBankEvents.ApplyBatch batch;
+
+	// an account debited VELOCITY_DEBITS times, or by more than
+	// VELOCITY_AMOUNT cents, within VELOCITY_WINDOW transactions is flagged
+	private static final int VELOCITY_WINDOW = 10000,
+							 VELOCITY_DEBITS = 10;
+	private static final long VELOCITY_AMOUNT = 10000000;
+	private final VelocityDetector velocity =
+			new VelocityDetector(VELOCITY_WINDOW, VELOCITY_DEBITS, VELOCITY_AMOUNT);
+
+	// transactions a front end session may send ahead of the intraday apply
+	// loop, demand is renewed half a window at a time
+	private static final int INTRADAY_WINDOW = 256;
+
+	// how often the daemon looks for new transaction files, in milliseconds
+	private static final long DAEMON_POLL = 1000;
+
+	// background thread writing checkpoints, and the write in progress
+	private ExecutorService checkpointWriter;
+	private Future<?> pendingCheckpoint;
 	
 	/**
 	 * @param accountsFile
@@ -49,13 +145,87 @@ public class BackOffice_NCR {
 	 */
 	public BackOffice_NCR(String accountsFile, String transactionsFile,
 			String accountsFileName, String masterAccountsFileName) {
-		accounts = new HashMap<Integer, Account>();
-		transactions = new LinkedList<String>();
+		this(accountsFile, transactionsFile, accountsFileName, masterAccountsFileName, false);
+	}
+	
+	/**
+	 * @param accountsFile
+	 * @param transactionsFile
+	 * @param accountsFileName
+	 * @param masterAccountsFileName
+	 * @param resume - true to resume from the latest checkpoint of an earlier
+	 * run with the same output names, if there is one
+	 * 
+	 * constructor for BackOffice
+	 * initializes internal data structures and runs methods to import and process data
+	 */
+	public BackOffice_NCR(String accountsFile, String transactionsFile,
+			String accountsFileName, String masterAccountsFileName, boolean resume) {
+		this(accountsFile, transactionsFile, masterAccountsFileName, resume);
+		run(accountsFileName, masterAccountsFileName);
+	}
+	
+	/**
+	 * @param accountsFile
+	 * @param transactionsFile
+	 * @param masterAccountsFileName - output name of the master accounts
+	 * file, the checkpoint to resume from is named after it
+	 * @param resume - true to resume from the latest checkpoint of an earlier
+	 * run with the same output names, if there is one
+	 * 
+	 * constructor for a BackOffice that is started later with run, it only
+	 * imports the data, so the object can be handed to threads that take
+	 * snapshots while the transactions are applied
+	 */
+	public BackOffice_NCR(String accountsFile, String transactionsFile, String masterAccountsFileName,
+			boolean resume) {
+		store = new AccountStore();
+		accounts = store;
+		transactions = new TransactionQueue.Lines();
+		report = new EndOfDayReport();
 
+		try {
+			MAFStamp = Checkpoint.stamp(accountsFile);
+			MTSFStamp = Checkpoint.stamp(transactionsFile);
+			summaryFile = transactionsFile;
+		} catch (IOException e) {
+			MAFStamp = null; // reading the files fails below
+		}
+		if (resume)
+			resumed = readCheckpoint(checkpointFileName(masterAccountsFileName), transactionsFile);
 		initialize(accountsFile, transactionsFile);
+	}
+	
+	/**
+	 * @param accountsFileName - output name of accounts file
+	 * @param masterAccountsFileName - output name of master accounts file
+	 * 
+	 * applies the imported transactions, see processTransactions
+	 */
+	public void run(String accountsFileName, String masterAccountsFileName) {
 		processTransactions(accountsFileName, masterAccountsFileName);
 	}
 	
+	/**
+	 * @param accountsFile - name of the master accounts file
+	 * @param low - lowest account number owned, inclusive
+	 * @param high - highest account number owned, inclusive
+	 * 
+	 * constructor for one partition of a partitioned back office
+	 * only loads the accounts in the owned range, transactions are given
+	 * one at a time through applyTransaction
+	 */
+	BackOffice_NCR(String accountsFile, int low, int high) {
+		store = new AccountStore();
+		accounts = store;
+		transactions = new TransactionQueue.Lines();
+		report = new EndOfDayReport();
+		this.low = low;
+		this.high = high;
+
+		readAccountsFile(accountsFile);
+	}
+	
 	
 //-----------------------Office Methods----------------------	
 	
@@ -63,33 +233,40 @@ public class BackOffice_NCR {
 	 * @param accountNum
 	 * @param balance
 	 * @param name
+	 * @return success of method
 	 * 
 	 * adds new account to accounts HashMap, brand new accounts are
 	 * created with a balance of 0
 	 * inputs are assumed to be valid
 	 */
-	private void create(int accountNum, int balance, String name) {
-		if (!accounts.containsKey(accountNum)) 
-			accounts.put(accountNum, new Account(accountNum, balance, name));
-		else 
+	private boolean create(int accountNum, int balance, String name) {
+		if (!accounts.containsKey(accountNum)) {
+			accounts.put(new Account(accountNum, balance, name));
+			return true;
+		} else { 
 			System.err.println("Could not create account with number " + accountNum);
-		
+			return false;
+		}
 	}
 	
 	/**
 	 * @param accountNum
 	 * @param name
+	 * @return success of method
 	 * 
-	 * deletes an account if conditions are met
+	 * deletes an account if conditions are met, the name is compared through
+	 * its id in the shared name dictionary
 	 * inputs are assumed to be valid
 	 */
-	private void delete(int accountNum, String name) {
+	private boolean delete(int accountNum, String name) {
 		if (accounts.get(accountNum) != null &&			//account exists
 			accounts.get(accountNum).getBalance() == 0 &&	//balance is 0
-			accounts.get(accountNum).getName().equals(name)) { //name matches
+			accounts.get(accountNum).getNameId() == NameDictionary.shared().lookup(name)) { //name matches
 			accounts.remove(accountNum);
+			return true;
 		} else {
 			System.err.println("delete could not be processed on account " + accountNum);
+			return false;
 		}
 	}
 	
@@ -103,7 +280,7 @@ public class BackOffice_NCR {
 	 */
 	private boolean deposit(int accountNum, int value) {
 		if (accounts.get(accountNum) != null) {
-			boolean success = accounts.get(accountNum).increaseBalance(value);
+			boolean success = accounts.increaseBalance(accountNum, value);
 			if (!success)
 				System.err.println("maximum balance exceeded");
 			return success;
@@ -124,7 +301,7 @@ public class BackOffice_NCR {
 	private boolean withdraw(int accountNum, int value) {
 		if (accounts.get(accountNum) != null) {
 			System.err.println("\nconditional #1 passed");
-			boolean success = accounts.get(accountNum).decreaseBalance(value); //returns success of command
+			boolean success = accounts.decreaseBalance(accountNum, value); //returns success of command
 			if (!success){
 				System.err.println("conditional #2 passed");
 				System.err.println("value exceeds account balance\n");
@@ -144,15 +321,75 @@ public class BackOffice_NCR {
 	 * @param fromAccount - account number of the account to transfer money from
 	 * @param toAccount - account number of the account to transfer money to
 	 * @param value - amount to transfer
+	 * @return success of method
 	 * 
-	 * runs deposit and withdraw on the specified accounts to simulate a transfer
+	 * runs deposit and withdraw on the specified accounts to simulate a transfer,
+	 * the withdraw is refunded if the deposit fails so the transfer is applied
+	 * completely or not at all
 	 * inputs are assumed to be valid
 	 */
-	private void transfer(int fromAccount, int toAccount, int value){
-		if (withdraw(fromAccount, value) && deposit(toAccount, value)); //transfer succeeded
-		else if (withdraw(fromAccount, value) && !deposit(toAccount, value)) //withdraw successful, deposit fails
-			deposit(fromAccount, value);
-		else;//withdraw fails, do nothing
+	private boolean transfer(int fromAccount, int toAccount, int value){
+		if (!withdraw(fromAccount, value)) //withdraw fails, do nothing
+			return false;
+		if (deposit(toAccount, value)) //transfer succeeded
+			return true;
+		undoDebit(fromAccount, value); //withdraw successful, deposit fails
+		return false;
+	}
+	
+	/**
+	 * @param accountNum
+	 * @param value
+	 * @return success of method
+	 * 
+	 * first phase of the debit side of a transfer between partitions,
+	 * the money is withdrawn right away and given back by undoDebit if the
+	 * transfer is aborted
+	 */
+	boolean prepareDebit(int accountNum, int value) {
+		return withdraw(accountNum, value);
+	}
+	
+	/**
+	 * @param accountNum
+	 * @param value
+	 * @return success of method
+	 * 
+	 * first phase of the credit side of a transfer between partitions,
+	 * the money is deposited right away and taken back by undoCredit if the
+	 * transfer is aborted
+	 */
+	boolean prepareCredit(int accountNum, int value) {
+		return deposit(accountNum, value);
+	}
+	
+	/**
+	 * @param accountNum
+	 * @param value
+	 * 
+	 * gives back money taken by a successful withdraw
+	 */
+	void undoDebit(int accountNum, int value) {
+		accounts.increaseBalance(accountNum, value);
+	}
+	
+	/**
+	 * @param accountNum
+	 * @param value
+	 * 
+	 * takes back money added by a successful deposit
+	 */
+	void undoCredit(int accountNum, int value) {
+		accounts.decreaseBalance(accountNum, value);
+	}
+	
+	/**
+	 * @param value
+	 * 
+	 * records a transfer between partitions once both sides committed
+	 */
+	void transferCommitted(int value) {
+		report.transfer(value);
 	}
 	
 	/**
@@ -160,16 +397,62 @@ public class BackOffice_NCR {
 	 * @param MAFName - output name of master accounts file
 	 * 
 	 * writes account information to the Master Accounts File and generates the accounts
-	 * file used by the front end of the bank, clears internal data structures
+	 * file used by the front end of the bank, along with the end of day report,
+	 * clears internal data structures
+	 * all the files are written from the same snapshot of the accounts, the
+	 * delta file lists the accounts changed since the MAF read or last written
 	 */
 	private void endSession(String accountsFileName, String MAFName) {
-		writeAccountsFile(accountsFileName);
-		writeMasterAccountsFile(MAFName);
+		SimBankEvents.EndOfSession event = new SimBankEvents.EndOfSession();
+		event.begin();
+		sessionEnded = true;
+		AccountStore.Snapshot view = store.snapshot();
+		Account[] sorted = view.toArray();
+		SimBankEvents.SessionWrite write = sessionWrite("accounts", accountsFileName);
+		writeAccountsFile(sorted, accountsFileName);
+		write.commit();
+		write = sessionWrite("MAF", MAFName);
+		MAFWritten = writeMasterAccountsFile(sorted, MAFName);
+		write.commit();
+		write = sessionWrite("delta", deltaFileName(MAFName));
+		writeDeltaFile(view, deltaFileName(MAFName));
+		write.commit();
+		write = sessionWrite("report", reportFileName(MAFName));
+		report.write(Arrays.asList(sorted), reportFileName(MAFName));
+		write.commit();
+		write = sessionWrite("names", NameIndex.indexFileName(fixFileName(MAFName)));
+		writeNameIndex(sorted, NameIndex.indexFileName(fixFileName(MAFName)));
+		write.commit();
+		write = sessionWrite("alerts", alertsFileName(MAFName));
+		velocity.write(alertsFileName(MAFName));
+		write.commit();
+		if (journal != null) {
+			try {
+				journal.flush();
+			} catch (IOException e) {
+				System.out.println("Could not write to journal.");
+			}
+		}
 		//accounts.clear();
 		transactions.clear();// should already be empty, but just in case
+		event.accounts = sorted.length;
+		event.commit();
 		System.out.println("END OF SESSION");
 		//System.exit(0);
 	}
+	
+	/**
+	 * @param kind - kind of output file
+	 * @param fileName
+	 * @return started flight recorder event for writing the file
+	 */
+	private static SimBankEvents.SessionWrite sessionWrite(String kind, String fileName) {
+		SimBankEvents.SessionWrite event = new SimBankEvents.SessionWrite();
+		event.kind = kind;
+		event.file = fileName;
+		event.begin();
+		return event;
+	}
 //-----------------------Helper methods----------------------
 		
 	/** displays fatal error message
@@ -177,8 +460,23 @@ public class BackOffice_NCR {
 	 */
 	private void fatal() {
 		System.err.println("Fatal Error. Program Exiting.");
+		closeJournal(); // keep what was applied before the bad line
 		System.exit(0);
 	}
+	
+	/**
+	 * writes out and closes the journal, if there is one
+	 */
+	private void closeJournal() {
+		if (journal == null)
+			return;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			System.out.println("Could not write to journal.");
+		}
+		journal = null;
+	}
 		
 	/**
 	 * @param accountsFile - name of master accounts file
@@ -188,8 +486,80 @@ public class BackOffice_NCR {
 	 * summary file into internal data structures
 	 */
 	private void initialize(String accountsFile, String transactionFile) {
-		readAccountsFile(accountsFile);// read master accounts file
-		readTransactionFile(transactionFile);
+		if (resumed == null) {
+			readAccountsFile(accountsFile);// read master accounts file
+			readTransactionFile(transactionFile, 0);
+		} else {
+			for (Account account : resumed.accounts)
+				accounts.put(account);
+			store.clearDirty();
+			store.markDirty(resumed.dirty);
+			report.restore(resumed.totals);
+			try {
+				velocity.restore(resumed.velocity);
+			} catch (IOException e) {
+				velocity.clear();
+				System.out.println("Could not restore velocity alerts, they start over.");
+			}
+			mtsfOffset = resumed.offset;
+			linesApplied = resumed.lines;
+			readTransactionFile(transactionFile, resumed.offset);
+			System.out.println("Resuming after transaction " + resumed.lines);
+		}
+	}
+	
+	/**
+	 * @param checkpointFile
+	 * @param transactionFile
+	 * @return the checkpoint to resume from, or null to start from the beginning
+	 * 
+	 * the checkpoint is only used if it was written for the same master
+	 * accounts file, its offset is the start of a line of the transaction
+	 * summary file (of the record following as many records as it applied,
+	 * for a binary summary) and the summary file before the offset is the one it was
+	 * written for, a summary file changed after the offset (a malformed line
+	 * corrected) is resumed
+	 */
+	private Checkpoint readCheckpoint(String checkpointFile, String transactionFile) {
+		try {
+			Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+			if (checkpoint == null)
+				return null;
+			if (MAFStamp == null || !checkpoint.MAFStamp.equals(MAFStamp)) {
+				System.out.println("Checkpoint was written for another master accounts file, starting from the beginning.");
+				return null;
+			}
+			boolean lineStart;
+			if (BinarySummary.isBinary(transactionFile)) {
+				lineStart = BinarySummary.recordsBefore(transactionFile, checkpoint.offset) == checkpoint.lines;
+			} else {
+				try (RandomAccessFile in = new RandomAccessFile(transactionFile, "r")) {
+					lineStart = checkpoint.offset <= in.length();
+					if (lineStart && checkpoint.offset > 0) {
+						in.seek(checkpoint.offset - 1);
+						lineStart = in.read() == '\n';
+					}
+				}
+			}
+			if (!lineStart) {
+				System.out.println("Checkpoint does not match the transaction summary file, starting from the beginning.");
+				return null;
+			}
+			CRC32C hash = new CRC32C();
+			Checkpoint.hash(hash, transactionFile, 0, checkpoint.offset);
+			if (hash.getValue() != checkpoint.appliedHash) {
+				System.out.println("Checkpoint was written for another transaction summary file, starting from the beginning.");
+				return null;
+			}
+			if (!checkpoint.MTSFStamp.equals(MTSFStamp))
+				System.out.println("Transaction summary file changed after the checkpoint, its applied part is unchanged.");
+			appliedHash = hash;
+			hashedOffset = checkpoint.offset;
+			return checkpoint;
+		} catch (IOException e) {
+			System.out.println("Could not load checkpoint, starting from the beginning.");
+			return null;
+		}
 	}
 	
 	/**
@@ -198,49 +568,764 @@ public class BackOffice_NCR {
 	 * 
 	 * Executes all the transactions retrieved from the merged transaction summary file
 	 * parameters are passed to endSession(String,String) when it is called
+	 * runs of deposits and withdrawals on one account are applied together by
+	 * applyRun, a run never crosses a checkpoint or a snapshot request
 	 */
 	private void processTransactions(String accountsFileName, String MAFName) {
+		synchronized (snapshotRequests) {
+			applying = true;
+		}
+		try {
+			if (resumed == null)
+				journal = new TransactionJournal(journalFileName(MAFName));
+			else
+				journal = new TransactionJournal(journalFileName(MAFName), resumed.journalRecords);
+		} catch (IOException e) {
+			System.out.println("Could not write to journal.");
+		}
+		int line = 0;
+		startBatch();
 		while (!transactions.isEmpty()) {
-			String[] args = transactions.remove().split(" ", 5);
-			// args[0] = command
-			// args[1] = first account number
-			// args[2] = second account number
-			// args[3] = money value
-			// args[4] = account name
-			int aNum1 = 0, aNum2 = 0, money = 0;
-			String cmd = "", name = "***";
-
-			validateTransaction(args);// kills program if given bad input
-
-			aNum1 = Integer.parseInt(args[1]);
-			aNum2 = Integer.parseInt(args[2]);
-			money = Integer.parseInt(args[3]);
-			cmd = args[0];
-			name = args[4].trim();
-
-			switch (cmd) {
-			case "CR":
-				create(aNum1, money, name);
+			if (!snapshotRequests.isEmpty())
+				serveSnapshotRequests();
+			String[] args = transactions.poll().split(" ", 5);
+			int applied = 1;
+			if (startsRun(args))
+				applied = applyRun(args,
+						(int) Math.min(COALESCE_WINDOW, CHECKPOINT_INTERVAL - linesApplied % CHECKPOINT_INTERVAL));
+			else
+				applyTransaction(args, accountsFileName, MAFName);
+			for (int i = 0; i < applied; i++) {
+				mtsfOffset += lineBytes[line++];
+				if (++linesApplied % CHECKPOINT_INTERVAL == 0)
+					checkpoint(MAFName);
+			}
+			if (batch != null && batch.transactions >= APPLY_BATCH) {
+				endBatch();
+				startBatch();
+			}
+		}
+		endBatch();
+		closeJournal();
+		finishCheckpoints(MAFName);
+		synchronized (snapshotRequests) {
+			applying = false;
+			serveSnapshotRequests();
+		}
+	}
+	
+	/**
+	 * @param transaction - one line of the merged transaction summary file
+	 * @param accountsFileName
+	 * @param MAFName
+	 * 
+	 * validates and executes a single transaction
+	 * parameters are passed to endSession(String,String) when it is called
+	 */
+	void applyTransaction(String transaction, String accountsFileName, String MAFName) {
+		applyTransaction(transaction.split(" ", 5), accountsFileName, MAFName);
+	}
+	
+	/**
+	 * @param args - transaction split into its five fields
+	 * @param accountsFileName
+	 * @param MAFName
+	 * @return success of the transaction, an ES always succeeds
+	 */
+	private boolean applyTransaction(String[] args, String accountsFileName, String MAFName) {
+		// args[0] = command
+		// args[1] = first account number
+		// args[2] = second account number
+		// args[3] = money value
+		// args[4] = account name
+		int aNum1 = 0, aNum2 = 0, money = 0;
+		String cmd = "", name = "***";
+		boolean success = false;
+
+		validateTransaction(args);// kills program if given bad input
+
+		aNum1 = Integer.parseInt(args[1]);
+		aNum2 = Integer.parseInt(args[2]);
+		money = Integer.parseInt(args[3]);
+		cmd = args[0];
+		name = args[4].trim();
+		int before1 = balanceOf(aNum1),
+			before2 = balanceOf(aNum2);
+
+		switch (cmd) {
+		case "CR":
+			success = create(aNum1, money, name);
+			if (success)
+				report.accountCreated();
+			break;
+		case "DL":
+			success = delete(aNum1, name);
+			if (success)
+				report.accountDeleted();
+			break;
+		case "DE":
+			success = deposit(aNum1, money);
+			if (success)
+				report.deposit(money);
+			break;
+		case "WD":
+			success = withdraw(aNum1, money);
+			if (success)
+				report.withdraw(money);
+			break;
+		case "TR":
+			success = transfer(aNum1, aNum2, money);
+			if (success)
+				report.transfer(money);
+			break;
+		case "ES":
+			success = true;
+			journal(cmd, success, aNum1, aNum2, money, name, before1, before2);
+			if (batch != null) {
+				batch.count(cmd, success);
+				endBatch(); // the session writes are recorded on their own
+			}
+			endSession(accountsFileName, MAFName);
+			return true;
+		default:
+			fatal();
+		}
+		journal(cmd, success, aNum1, aNum2, money, name, before1, before2);
+		velocity.observe(success && (cmd.equals("WD") || cmd.equals("TR")), aNum1, money);
+		if (batch != null)
+			batch.count(cmd, success);
+		return success;
+	}
+	
+	/**
+	 * starts an ApplyBatch flight recorder event if the event is recorded
+	 */
+	private void startBatch() {
+		SimBankEvents.ApplyBatch event = new SimBankEvents.ApplyBatch();
+		if (event.isEnabled()) {
+			event.begin();
+			batch = event;
+		}
+	}
+	
+	/**
+	 * commits the ApplyBatch event being filled, if there is one
+	 */
+	private void endBatch() {
+		if (batch != null) {
+			batch.commit();
+			batch = null;
+		}
+	}
+	
+	/**
+	 * @param args - transaction split into its five fields
+	 * @return true if the transaction is a valid deposit or withdraw of an
+	 * existing account, with no second account
+	 */
+	private boolean startsRun(String[] args) {
+		return continuesRun(args) && accounts.get(Integer.parseInt(args[1])) != null;
+	}
+	
+	/**
+	 * @param args - transaction split into its five fields
+	 * @return true if the transaction is a valid deposit or withdraw with no
+	 * second account, it continues a run if its account is the run's account
+	 */
+	private static boolean continuesRun(String[] args) {
+		return (args[0].equals("DE") || args[0].equals("WD")) && isValidTransaction(args)
+				&& Integer.parseInt(args[2]) == 0;
+	}
+	
+	/**
+	 * @param args - first transaction of the run, as accepted by startsRun
+	 * @param limit - most transactions to apply
+	 * @return number of transactions applied
+	 * 
+	 * applies the deposit or withdraw and the deposits and withdrawals of the
+	 * same account directly following it in the queue to a balance held in a
+	 * local variable, the account is looked up and stored back once
+	 * every transaction is still checked against the maximum balance or the
+	 * balance in order, and logged, reported and journaled exactly as deposit
+	 * and withdraw would
+	 */
+	private int applyRun(String[] args, int limit) {
+		int accountNum = Integer.parseInt(args[1]),
+			balance = accounts.get(accountNum).getBalance(),
+			none = balanceOf(0); // balance recorded for the unused second account
+		int applied = 0;
+		while (true) {
+			int money = Integer.parseInt(args[3]),
+				before = balance;
+			boolean success;
+			if (args[0].equals("DE")) {
+				success = balance + money <= Account.MAX_BALANCE;
+				if (success) {
+					balance += money;
+					report.deposit(money);
+				} else {
+					System.err.println("maximum balance exceeded");
+				}
+			} else {
+				System.err.println("\nconditional #1 passed");
+				success = balance >= money;
+				if (success) {
+					balance -= money;
+					System.err.println("conditional #2 failed");
+					report.withdraw(money);
+				} else {
+					System.err.println("conditional #2 passed");
+					System.err.println("value exceeds account balance\n");
+				}
+			}
+			record(args[0], success, accountNum, 0, money, args[4].trim(), before, balance, none, none);
+			velocity.observe(success && args[0].equals("WD"), accountNum, money);
+			if (batch != null)
+				batch.count(args[0], success);
+			applied++;
+
+			if (applied == limit || transactions.isEmpty() || !snapshotRequests.isEmpty())
 				break;
-			case "DL":
-				delete(aNum1, name);
+			String[] next = transactions.peek().split(" ", 5);
+			if (!continuesRun(next) || Integer.parseInt(next[1]) != accountNum)
 				break;
+			transactions.poll();
+			args = next;
+		}
+		accounts.setBalance(accountNum, balance);
+		return applied;
+	}
+	
+	/**
+	 * @param accountNum
+	 * @return balance of the account, or TransactionJournal.NO_ACCOUNT if it
+	 * does not exist
+	 */
+	private int balanceOf(int accountNum) {
+		Account account = accounts.get(accountNum);
+		return account == null ? TransactionJournal.NO_ACCOUNT : account.getBalance();
+	}
+	
+	/**
+	 * @param cmd
+	 * @param success
+	 * @param aNum1
+	 * @param aNum2
+	 * @param money
+	 * @param name
+	 * @param before1 - balance of the first account before the transaction
+	 * @param before2 - balance of the second account before the transaction
+	 * 
+	 * appends the transaction to the journal, with the balances it left behind
+	 */
+	private void journal(String cmd, boolean success, int aNum1, int aNum2, int money, String name,
+			int before1, int before2) {
+		if (journal != null)
+			record(cmd, success, aNum1, aNum2, money, name, before1, balanceOf(aNum1), before2, balanceOf(aNum2));
+	}
+	
+	/**
+	 * appends the transaction to the journal with the given balances
+	 */
+	private void record(String cmd, boolean success, int aNum1, int aNum2, int money, String name,
+			int before1, int after1, int before2, int after2) {
+		if (journal == null)
+			return;
+		try {
+			journal.record(cmd, success, aNum1, aNum2, money, name, before1, after1, before2, after2);
+		} catch (IOException e) {
+			System.out.println("Could not write to journal.");
+			journal = null;
+		}
+	}
+	
+	/**
+	 * @param inbox - directory the merged transaction summary files arrive in
+	 * @param sourceMAF - master accounts file the accounts were loaded from
+	 * @param accountsFileName - output name of accounts file
+	 * @param MAFName - output name of master accounts file
+	 * 
+	 * runs one business day after another without leaving the JVM
+	 * every file that appears in the inbox is applied to the accounts kept
+	 * in memory and moved to inbox/processed, files are taken in name order
+	 * and must be moved into the inbox complete (names ending in .tmp and
+	 * hidden files are ignored)
+	 * the accounts loaded by the constructor are used for the first day, before
+	 * each day they are only reloaded from disk when memory may differ from
+	 * what the restart every day flow would read: when the previous day wrote
+	 * no MAF (no ES was reached, or writing the MAF failed) or the MAF was
+	 * changed on disk after it was loaded or written, a reload also clears
+	 * the shared NameDictionary so the names of dropped accounts are not kept
+	 * a day whose MAF could not be written is moved to inbox/failed instead,
+	 * its transactions are not in any MAF, and the daemon stops if a day can
+	 * not be moved out of the inbox, rather than apply it again
+	 */
+	void runDaemon(String inbox, String sourceMAF, String accountsFileName, String MAFName) {
+		File dir = new File(inbox),
+			 processed = new File(dir, "processed"),
+			 failed = new File(dir, "failed");
+		processed.mkdirs();
+		failed.mkdirs();
+		String written = fileStamp(sourceMAF); // stamp of sourceMAF when memory held it, null if it does not
+		System.out.println("Waiting for transaction files in " + dir);
+		while (true) {
+			File[] arrived = dir.listFiles(file -> file.isFile() && !file.getName().startsWith(".")
+					&& !file.getName().endsWith(".tmp"));
+			if (arrived == null || arrived.length == 0) {
+				try {
+					Thread.sleep(DAEMON_POLL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			Arrays.sort(arrived);
+			for (File day : arrived) {
+				if (written != null && !written.equals(fileStamp(sourceMAF))) {
+					System.out.println(sourceMAF + " changed on disk, reloading it.");
+					written = null;
+				}
+				if (written == null) {
+					store = new AccountStore();
+					accounts = store;
+					NameDictionary.shared().clear(); // no account of the dropped store is used again
+					readAccountsFile(sourceMAF);
+				}
+
+				startDay();
+				readTransactionFile(day.getPath(), 0);
+				processTransactions(accountsFileName, MAFName);
+				File done = processed;
+				if (MAFWritten) {
+					sourceMAF = fixFileName(MAFName);
+					written = fileStamp(sourceMAF);
+				} else {
+					written = null; // nothing written, the next day starts from the MAF on disk
+					if (sessionEnded) {
+						System.err.println("DAEMON ERROR: could not write " + fixFileName(MAFName) + " for "
+								+ day.getName() + ", its transactions are not saved, it is moved to " + failed
+								+ " and the next day starts from " + sourceMAF);
+						done = failed;
+					}
+				}
+				try {
+					Files.move(day.toPath(), new File(done, day.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					System.err.println("DAEMON ERROR: could not move " + day + " out of the inbox, stopping so it is not applied again.");
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param port - loopback port front end sessions publish to
+	 * @param accountsFileName - output name of accounts file
+	 * @param MAFName - output name of master accounts file
+	 * 
+	 * applies the transactions of front end sessions as they are accepted
+	 * during the day instead of in one nightly run, see TransactionChannel
+	 * every session is subscribed to with a window of INTRADAY_WINDOW
+	 * transactions, and this thread, the only one changing the accounts,
+	 * applies what the sessions send in arrival order and renews their
+	 * demand as it catches up
+	 * end of day (TransactionChannel eod <port>) applies an ES, which only
+	 * has to write the output files, and starts the next day
+	 * invalid lines are dropped instead of ending the program, they are
+	 * logged to the failed constraint log
+	 */
+	void runIntraday(int port, String accountsFileName, String MAFName) {
+		final BlockingQueue<Runnable> inbox = new LinkedBlockingQueue<Runnable>();
+		final ServerSocket server;
+		try {
+			server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		} catch (IOException e) {
+			System.out.println("Could not listen on port " + port + ".");
+			return;
+		}
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					String hello = in.readLine();
+					if ("PUBLISH".equals(hello)) {
+						TransactionChannel.RemotePublisher session = new TransactionChannel.RemotePublisher(socket, in);
+						session.subscribe(new IntradaySession(inbox, session));
+					}
+					else if ("EOD".equals(hello))
+						inbox.add(() -> endOfDay(socket, accountsFileName, MAFName));
+					else
+						socket.close();
+				} catch (IOException e) {
+					System.out.println("Could not accept a front end session.");
+				}
+			}
+		}, "intraday-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		synchronized (snapshotRequests) {
+			applying = true;
+		}
+		openJournal(MAFName);
+		System.out.println("Accepting transactions on port " + server.getLocalPort());
+		while (true) {
+			Runnable next;
+			try {
+				next = inbox.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (!snapshotRequests.isEmpty())
+				serveSnapshotRequests();
+			if (next != null) {
+				next.run();
+			} else if (journal != null) {
+				try {
+					journal.flush(); // idle, make what was applied durable
+				} catch (IOException e) {
+					System.out.println("Could not write to journal.");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param transaction - transaction sent by a front end session
+	 * 
+	 * applies one intraday transaction, the day is only ended by endOfDay
+	 */
+	private void applyIntraday(String transaction) {
+		String[] args = transaction.split(" ", 5);
+		if (isValidTransaction(args)) {
+			switch (args[0]) {
+			case "CR":
+			case "DL":
 			case "DE":
-				deposit(aNum1, money);
-				break;
 			case "WD":
-				withdraw(aNum1, money);
-				break;
 			case "TR":
-				transfer(aNum1, aNum2, money);
-				break;
-			case "ES":
-				endSession(accountsFileName, MAFName);
+				applyTransaction(args, null, null);
+				return;
+			}
+		}
+		System.err.println("Invalid transaction dropped: " + transaction);
+	}
+	
+	/**
+	 * @param transactionFile - merged transaction summary file
+	 * @param reportFileName - name of the failure report
+	 * @param diffFileName - name of the MAF diff
+	 * 
+	 * applies the transactions up to the first ES to an AccountOverlay of
+	 * the loaded accounts, which never changes them, and writes what the
+	 * run would do instead of doing it: the failure report lists every
+	 * transaction that would fail as FAILED <line> <transaction>, and an
+	 * invalid line, which would end a real run, as INVALID <line>
+	 * <transaction> before the run stops there; the MAF diff lists every
+	 * account whose MAF record would change as - <old record> and
+	 * + <new record>, in account order
+	 * no MAF, accounts file, journal or other output of a run is written
+	 */
+	void dryRun(String transactionFile, String reportFileName, String diffFileName) {
+		AccountOverlay overlay = new AccountOverlay(store);
+		accounts = overlay;
+		readTransactionFile(transactionFile, 0);
+		StringBuilder failures = new StringBuilder();
+		int line = 0, failed = 0;
+		boolean ended = false;
+		String transaction;
+		while (!ended && (transaction = transactions.poll()) != null) {
+			line++;
+			String[] args = transaction.split(" ", 5);
+			boolean valid = isValidTransaction(args);
+			if (valid) {
+				switch (args[0]) {
+				case "CR":
+				case "DL":
+				case "DE":
+				case "WD":
+				case "TR":
+					if (!applyTransaction(args, null, null)) {
+						failures.append("FAILED ").append(line).append(' ').append(transaction).append('\n');
+						failed++;
+					}
+					break;
+				case "ES":
+					ended = true;
+					break;
+				default:
+					valid = false;
+				}
+			}
+			if (!valid) {
+				failures.append("INVALID ").append(line).append(' ').append(transaction).append('\n');
+				failed++;
 				break;
-			default:
-				fatal();
 			}
 		}
+		accounts = store;
+
+		int[] changed = overlay.changedAccounts();
+		StringBuilder diff = new StringBuilder();
+		int differ = 0;
+		for (int accountNum : changed) {
+			Account before = store.get(accountNum),
+					after = overlay.get(accountNum);
+			String old = before == null ? null : before.toString(),
+				   now = after == null ? null : after.toString();
+			if (old != null && old.equals(now))
+				continue;
+			differ++;
+			if (old != null)
+				diff.append("- ").append(old).append('\n');
+			if (now != null)
+				diff.append("+ ").append(now).append('\n');
+		}
+		writeText(failures, reportFileName);
+		writeText(diff, diffFileName);
+		System.out.println("Dry run of " + line + " transactions: " + failed + " would fail, "
+				+ differ + " accounts would change" + (ended ? "" : ", no ES reached"));
+	}
+	
+	/**
+	 * @param transactionFile - merged transaction summary file
+	 * @return number of transactions queued
+	 * 
+	 * queues the transactions of the file as a run would, without applying
+	 * them, so HeapFootprint can measure the queue
+	 */
+	int queueTransactions(String transactionFile) {
+		readTransactionFile(transactionFile, 0);
+		return transactions.size();
+	}
+	
+	/**
+	 * @param text
+	 * @param fileName
+	 * 
+	 * writes the text to the file, replacing it
+	 */
+	private void writeText(CharSequence text, String fileName) {
+		try {
+			Files.write(Paths.get(fileName), text.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			System.out.println("Could not write to file.");
+		}
+	}
+	
+	/**
+	 * @param socket - control connection that asked for the end of day
+	 * @param accountsFileName
+	 * @param MAFName
+	 * 
+	 * writes the output files of the day and starts the next one
+	 */
+	private void endOfDay(Socket socket, String accountsFileName, String MAFName) {
+		applyTransaction("ES 00000000 00000000 000 ***", accountsFileName, MAFName);
+		closeJournal();
+		startDay();
+		openJournal(MAFName);
+		try {
+			socket.getOutputStream().write("DONE\n".getBytes(StandardCharsets.UTF_8));
+			socket.close();
+		} catch (IOException e) {
+			// the control client is gone, the day is written anyway
+		}
+	}
+	
+	/**
+	 * @param MAFName
+	 * 
+	 * starts a new journal for the day
+	 */
+	private void openJournal(String MAFName) {
+		try {
+			journal = new TransactionJournal(journalFileName(MAFName));
+		} catch (IOException e) {
+			System.out.println("Could not write to journal.");
+		}
+	}
+	
+	/**
+	 * subscriber for one front end session of the intraday back office, hands
+	 * the transactions to the applying thread, confirms every applied one to
+	 * the session and asks the session for more once half of its window was
+	 * applied
+	 * once the session is lost, its transactions that were not applied yet
+	 * are dropped, the front end keeps them in its summary file
+	 */
+	private class IntradaySession implements Flow.Subscriber<String> {
+		private final BlockingQueue<Runnable> inbox;
+		private final TransactionChannel.RemotePublisher session;
+		private Flow.Subscription subscription;
+		private int applied; // only used by the applying thread
+		private long confirmed; // only used by the applying thread
+		private volatile boolean lost;
+
+		private IntradaySession(BlockingQueue<Runnable> inbox, TransactionChannel.RemotePublisher session) {
+			this.inbox = inbox;
+			this.session = session;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(INTRADAY_WINDOW);
+		}
+
+		public void onNext(String transaction) {
+			inbox.add(() -> {
+				if (lost)
+					return;
+				applyIntraday(transaction);
+				session.confirm(++confirmed);
+				if (++applied == INTRADAY_WINDOW / 2) {
+					applied = 0;
+					subscription.request(INTRADAY_WINDOW / 2);
+				}
+			});
+		}
+
+		public void onError(Throwable throwable) {
+			lost = true;
+			System.err.println("Front end session lost: " + throwable.getMessage());
+		}
+
+		public void onComplete() {
+			inbox.add(session::close); // after the session's last transaction
+		}
+	}
+	
+	/**
+	 * clears the state of the previous business day
+	 */
+	private void startDay() {
+		transactions = new TransactionQueue.Lines();
+		report = new EndOfDayReport();
+		velocity.clear();
+		lineBytes = new int[1024];
+		linesRead = 0;
+		mtsfOffset = 0;
+		linesApplied = 0;
+		resumed = null;
+		sessionEnded = false;
+		MAFWritten = false;
+	}
+	
+	/**
+	 * @param fileName
+	 * @return string identifying the current version of the file, or "" if
+	 * the file does not exist
+	 */
+	private static String fileStamp(String fileName) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class);
+			return attributes.fileKey() + " " + attributes.size() + " " + attributes.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+	
+	/**
+	 * @param MAFName
+	 * 
+	 * starts writing a checkpoint in the background, the accounts are captured
+	 * by a constant time snapshot so the apply loop only pauses to flush the
+	 * journal, skipped if the previous checkpoint is still being written
+	 */
+	private void checkpoint(String MAFName) {
+		if (pendingCheckpoint != null && !pendingCheckpoint.isDone())
+			return;
+		if (checkpointWriter == null) {
+			checkpointWriter = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "checkpoint-writer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		long journalRecords = 0;
+		if (journal != null) {
+			try {
+				journal.flush(); // the checkpoint must never be ahead of the journal on disk
+				journalRecords = journal.size();
+			} catch (IOException e) {
+				System.out.println("Could not write to journal.");
+			}
+		}
+		final AccountStore.Snapshot view = store.snapshot();
+		final String fileName = checkpointFileName(MAFName);
+		final long offset = mtsfOffset, lines = linesApplied, records = journalRecords;
+		final long[] totals = report.totals();
+		final int[] dirty = store.dirtyAccounts();
+		final byte[] alerts = velocity.state();
+		pendingCheckpoint = checkpointWriter.submit(() -> {
+			try {
+				if (summaryFile != null) { // hash what was applied since the last checkpoint
+					Checkpoint.hash(appliedHash, summaryFile, hashedOffset, offset);
+					hashedOffset = offset;
+				}
+				Checkpoint.write(fileName, MAFStamp == null ? "" : MAFStamp, MTSFStamp == null ? "" : MTSFStamp,
+						appliedHash.getValue(), view, offset, lines, records, totals, dirty, alerts);
+			} catch (IOException e) {
+				System.out.println("Could not write checkpoint.");
+			}
+		});
+	}
+	
+	/**
+	 * @param MAFName
+	 * 
+	 * waits for the checkpoint being written and removes the checkpoint file,
+	 * the run is complete so there is nothing left to resume
+	 */
+	private void finishCheckpoints(String MAFName) {
+		if (checkpointWriter != null) {
+			checkpointWriter.shutdown();
+			try {
+				checkpointWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			checkpointWriter = null;
+		}
+		new File(checkpointFileName(MAFName)).delete();
+	}
+	
+	/**
+	 * @return future completed with a point in time view of the accounts
+	 * 
+	 * can be called from any thread, while transactions are being applied the
+	 * snapshot is taken between two transactions, otherwise right away
+	 * to take snapshots during a run, create the BackOffice with the
+	 * constructor that only imports the data and start it with run
+	 * taking a snapshot is constant time, the accounts are only copied page by
+	 * page when they are next changed
+	 */
+	public CompletableFuture<AccountStore.Snapshot> snapshot() {
+		CompletableFuture<AccountStore.Snapshot> request = new CompletableFuture<AccountStore.Snapshot>();
+		synchronized (snapshotRequests) {
+			if (applying)
+				snapshotRequests.add(request);
+			else
+				request.complete(store.snapshot());
+		}
+		return request;
+	}
+	
+	/**
+	 * completes all pending snapshot requests with one snapshot
+	 */
+	private void serveSnapshotRequests() {
+		synchronized (snapshotRequests) {
+			if (snapshotRequests.isEmpty())
+				return;
+			AccountStore.Snapshot view = store.snapshot();
+			CompletableFuture<AccountStore.Snapshot> request;
+			while ((request = snapshotRequests.poll()) != null)
+				request.complete(view);
+		}
 	}
 	
 	/**
@@ -250,38 +1335,44 @@ public class BackOffice_NCR {
 	 * before they are passed to the various methods in the program
 	 */
 	private void validateTransaction(String[] transaction) {
+		if (!isValidTransaction(transaction))
+			fatal();
+	}
+	
+	/**
+	 * @param transaction - transaction line split into its five fields
+	 * @return true if every field of the transaction is legal input
+	 */
+	static boolean isValidTransaction(String[] transaction) {
 		try {
 			// command code
 			if (transaction[0].length() != 2)
-				fatal();
+				return false;
 
 			try {
 				// first account number
-				if (Integer.parseInt(transaction[1]) != 0
-						&& (Integer.parseInt(transaction[1]) < 10000000 || Integer
-								.parseInt(transaction[1]) > 99999999))
-					fatal();
+				int aNum1 = Integer.parseInt(transaction[1]);
+				if (aNum1 != 0 && (aNum1 < 10000000 || aNum1 > 99999999))
+					return false;
 				// second account number
-				if (Integer.parseInt(transaction[2]) != 0
-						&& (Integer.parseInt(transaction[2]) < 10000000 || Integer
-								.parseInt(transaction[2]) > 99999999))
-					fatal();
+				int aNum2 = Integer.parseInt(transaction[2]);
+				if (aNum2 != 0 && (aNum2 < 10000000 || aNum2 > 99999999))
+					return false;
 				// money
-				if (Integer.parseInt(transaction[3]) != 0
-						&& ((transaction[3].length() < 3
-								|| Integer.parseInt(transaction[3]) < 1 || Integer
-								.parseInt(transaction[3]) > 99999999)))
-					fatal();
+				int money = Integer.parseInt(transaction[3]);
+				if (money != 0 && (transaction[3].length() < 3 || money < 1 || money > 99999999))
+					return false;
 			} catch (NumberFormatException e) {
-				fatal();
+				return false;
 			}
 			// account name
 			if (transaction[4].trim().length() < 3
 					|| transaction[4].trim().length() > 30)
-				fatal();
+				return false;
 		} catch (ArrayIndexOutOfBoundsException ex) {
-			fatal();
+			return false;
 		}
+		return true;
 	}
 	
 	/**
@@ -291,7 +1382,7 @@ public class BackOffice_NCR {
 	 * ensures that the filetype of the accounts file and master
 	 * accounts file is .txt
 	 */
-	private String fixFileName(String filename) {
+	static String fixFileName(String filename) {
 		String temp = filename.substring(filename.length() - 4);
 		if (!temp.equals(".txt")) {
 			return filename + ".txt";
@@ -299,6 +1390,107 @@ public class BackOffice_NCR {
 		return filename;// test.txt
 	}
 	
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of the checkpoint file, MAF.txt produces MAF.checkpoint
+	 */
+	static String checkpointFileName(String MAFName) {
+		String name = fixFileName(MAFName);
+		return name.substring(0, name.length() - 4) + ".checkpoint";
+	}
+	
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of the delta file, MAF.txt produces MAF.delta
+	 */
+	static String deltaFileName(String MAFName) {
+		String name = fixFileName(MAFName);
+		return name.substring(0, name.length() - 4) + ".delta";
+	}
+	
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of the velocity alert file, MAF.txt produces MAF.alerts
+	 */
+	static String alertsFileName(String MAFName) {
+		String name = fixFileName(MAFName);
+		return name.substring(0, name.length() - 4) + ".alerts";
+	}
+	
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of the journal file, MAF.txt produces MAF.journal
+	 */
+	static String journalFileName(String MAFName) {
+		String name = fixFileName(MAFName);
+		return name.substring(0, name.length() - 4) + ".journal";
+	}
+	
+	/**
+	 * @param journalFile - journal of a run that started from the loaded MAF
+	 * @param limit - number of journal records to replay, -1 for all
+	 * @param accountsFileName - output name of accounts file
+	 * @param MAFName - output name of master accounts file
+	 * @throws IOException
+	 * 
+	 * rebuilds the accounts as they were after the given number of journal
+	 * records and writes them out
+	 */
+	void replayJournal(String journalFile, long limit, String accountsFileName, String MAFName) throws IOException {
+		long replayed = TransactionJournal.replay(Paths.get(journalFile), store, limit);
+		Account[] sorted = store.snapshot().toArray();
+		writeAccountsFile(sorted, accountsFileName);
+		writeMasterAccountsFile(sorted, MAFName);
+		System.out.println("Replayed " + replayed + " transactions");
+	}
+	
+	/**
+	 * @param low - lowest account number, inclusive
+	 * @param high - highest account number, inclusive
+	 * @param rule
+	 * @param accountsFileName - output name of accounts file
+	 * @param MAFName - output name of master accounts file
+	 * @return totals of the changes made and refused
+	 * 
+	 * applies a month end balance rule to the accounts of the range as a
+	 * session of its own: every change is journaled as a deposit or withdraw
+	 * of the account, the totals go into the end of day report and the
+	 * session's output files are all written by endSession
+	 */
+	BalanceRule.Result applyRule(int low, int high, BalanceRule rule, String accountsFileName,
+			String MAFName) {
+		try {
+			journal = new TransactionJournal(journalFileName(MAFName));
+		} catch (IOException e) {
+			System.out.println("Could not write to journal.");
+		}
+		AccountStore.Snapshot before = store.snapshot();
+		BalanceRule.Result result = store.apply(low, high, rule);
+		for (int accountNum : store.dirtyAccounts()) {
+			int from = before.get(accountNum).getBalance(),
+				to = balanceOf(accountNum);
+			record(to > from ? "DE" : "WD", true, accountNum, 0, Math.abs(to - from), "***",
+					from, to, TransactionJournal.NO_ACCOUNT, TransactionJournal.NO_ACCOUNT);
+		}
+		report.balanceRule(result);
+		journal("ES", true, 0, 0, 0, "***", TransactionJournal.NO_ACCOUNT, TransactionJournal.NO_ACCOUNT);
+		endSession(accountsFileName, MAFName);
+		closeJournal();
+		return result;
+	}
+	
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of the end of day report file
+	 * 
+	 * the report is written next to the master accounts file, MAF.txt
+	 * produces MAF_report.txt
+	 */
+	static String reportFileName(String MAFName) {
+		String name = fixFileName(MAFName);
+		return name.substring(0, name.length() - 4) + "_report.txt";
+	}
+	
 	/**
 	 * @param accountsFile - name of the master accounts file
 	 * 
@@ -306,6 +1498,8 @@ public class BackOffice_NCR {
 	 * accounts file
 	 */
 	private void readAccountsFile(String accountsFile) {
+		SimBankEvents.MAFLoad event = new SimBankEvents.MAFLoad();
+		event.begin();
 		final String ACCT = "Could not load accounts file.";
 		File inFile = new File(accountsFile);
 		BufferedReader br = null;
@@ -319,7 +1513,8 @@ public class BackOffice_NCR {
 					int num = Integer.parseInt(line[0]), 
 					balance = Integer.parseInt(line[1]);
 					String name = line[2];
-					accounts.put(num, new Account(num, balance, name));
+					if (num >= low && num <= high)
+						accounts.put(new Account(num, balance, name));
 
 				} catch (NumberFormatException e) {
 					System.out.println(ACCT);
@@ -336,89 +1531,215 @@ public class BackOffice_NCR {
 				System.out.println(ACCT);
 			}
 		}
+		store.clearDirty(); // the delta is written against the file just read
+		event.file = accountsFile;
+		event.accounts = accounts.size();
+		event.commit();
 	}
 	
 	/**
 	 * @param transactionFile - name of the merged transaction summary file
+	 * @param offset - byte offset to start reading at, 0 for the whole file
 	 * 
 	 * reads the lines of the merged transaction summary file into a 
-	 * queue of strings
+	 * queue of strings, and the byte length of every line into lineBytes
+	 * a binary summary (see BinarySummary) is recognised by its first byte
+	 * and queued as its records, the queue is empty whenever a file is read
+	 * and is replaced
 	 */
-	private void readTransactionFile(String transactionFile) {
-		File inFile = new File(transactionFile);
-		BufferedReader br = null;
+	private void readTransactionFile(String transactionFile, long offset) {
+		SimBankEvents.MTSFRead event = new SimBankEvents.MTSFRead();
+		event.begin();
+		int firstLine = linesRead;
+		FileChannel in = null;
 		try {
-			String line;
-			br = new BufferedReader(new FileReader(inFile));
-
-			while ((line = br.readLine()) != null) {
-				transactions.add(line);
+			in = FileChannel.open(Paths.get(transactionFile), StandardOpenOption.READ);
+			in.position(offset);
+			ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+			int read = in.read(chunk);
+			if (read > 0 && BinarySummary.isBinary(chunk.get(0))) {
+				readRecords(in, offset, chunk);
+			} else {
+				TransactionQueue.Lines lines = new TransactionQueue.Lines();
+				transactions = lines;
+				ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+				while (read != -1) {
+					byte[] bytes = chunk.array();
+					int start = 0;
+					for (int i = 0; i < chunk.position(); i++) {
+						if (bytes[i] == '\n') {
+							line.write(bytes, start, i - start);
+							addLine(lines, line, 1);
+							start = i + 1;
+						}
+					}
+					line.write(bytes, start, chunk.position() - start);
+					chunk.clear();
+					read = in.read(chunk);
+				}
+				if (line.size() > 0)
+					addLine(lines, line, 0);
 			}
+			event.bytes = in.position() - offset;
 		} catch (IOException e) {
 			System.err.println("Could not read the transaction summary file.");
 		} finally {
 			try {
-				if (br != null)
-					br.close();
+				if (in != null)
+					in.close();
 			} catch (IOException ex) {
 				System.out
 						.println("Could not read the transaction summary file.");
 			}
 		}
+		event.file = transactionFile;
+		event.offset = offset;
+		event.lines = linesRead - firstLine;
+		event.commit();
 	}
 	
 	/**
+	 * @param in - binary summary
+	 * @param offset - byte offset reading started at
+	 * @param chunk - holds the first bytes read from it
+	 * @throws IOException
+	 * 
+	 * reads the rest of the file in one go and queues its records undecoded,
+	 * a record cut off by the end of the file is fatal once reached, like a
+	 * bad text line
+	 */
+	private void readRecords(FileChannel in, long offset, ByteBuffer chunk) throws IOException {
+		long size = in.size() - offset;
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IOException("transaction summary file too large");
+		byte[] data = new byte[(int) size];
+		ByteBuffer records = ByteBuffer.wrap(data);
+		chunk.flip();
+		records.put(chunk);
+		while (records.hasRemaining() && in.read(records) != -1)
+			;
+		records.flip();
+		int count = 0, length;
+		while ((length = BinarySummary.recordLength(records)) > 0) {
+			records.position(records.position() + length);
+			addBytes(length);
+			count++;
+		}
+		int end = records.position();
+		if (records.hasRemaining())
+			addBytes(records.remaining());
+		if (records.limit() < data.length) // the file got shorter while it was read
+			data = Arrays.copyOf(data, records.limit());
+		transactions = new BinarySummary.Records(data, end, count);
+	}
+	
+	/**
+	 * @param lines - queue of the summary file
+	 * @param line - bytes of the line, without the line feed, reset afterwards
+	 * @param lineFeed - 1 if the line ended with a line feed, 0 at end of file
+	 * 
+	 * queues one line, a carriage return before the line feed is dropped
+	 */
+	private void addLine(TransactionQueue.Lines lines, ByteArrayOutputStream line, int lineFeed) {
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length;
+		if (length > 0 && bytes[length - 1] == '\r')
+			length--;
+		lines.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+		addBytes(bytes.length + lineFeed);
+		line.reset();
+	}
+	
+	/**
+	 * @param bytes - bytes the next queued transaction took in the summary file
+	 */
+	private void addBytes(int bytes) {
+		if (linesRead == lineBytes.length)
+			lineBytes = Arrays.copyOf(lineBytes, linesRead * 2);
+		lineBytes[linesRead++] = bytes;
+	}
+	
+	/**
+	 * @param sorted - accounts in ascending account number order
 	 * @param fileName - name of accounts file
 	 * 
-	 * sorts account numbers in ascending order and writes 
-	 * account numbers to a text file
+	 * writes account numbers to a text file in ascending order, and the
+	 * hash tree of the file next to it
 	 */
-	private void writeAccountsFile(String fileName) {
-		ArrayList<Integer> temp = new ArrayList<Integer>();
-		PrintWriter out = null;
+	private void writeAccountsFile(Account[] sorted, String fileName) {
 		try {
-			out = new PrintWriter(fixFileName(fileName));
-
-			for (int accountNum : accounts.keySet()) {
-				temp.add(accounts.get(accountNum).getAccountNum());
-			}
-
-			Collections.sort(temp);
-			for (int number : temp){
-				if(number < 10000000)
-					continue;
-				out.write(number + "\n");
-			}
-			out.write("00000000");
-		} catch (FileNotFoundException e) {
+			AccountFileWriter.writeAccounts(sorted, fixFileName(fileName));
+			AccountHashTree.build(sorted, false).write(AccountHashTree.treeFileName(fixFileName(fileName)));
+		} catch (IOException e) {
 			System.out.println("Could not write to file.");
-		} finally {
-			out.close();
 		}
 	}
 	
 	/**
+	 * @param accountsSection - name of this partition's part of the accounts file
+	 * @param MAFSection - name of this partition's part of the master accounts file
+	 * @throws IOException
+	 * 
+	 * writes the accounts owned by this partition, the accounts section has
+	 * no end marker so the sections can be joined in account number order
+	 */
+	void writeSections(String accountsSection, String MAFSection) throws IOException {
+		Account[] sorted = store.snapshot().toArray();
+		AccountFileWriter.writeAccountsSection(sorted, accountsSection);
+		AccountFileWriter.writeMasterAccounts(sorted, MAFSection);
+	}
+	
+	/**
+	 * @param sorted - accounts in ascending account number order
 	 * @param fileName - name of output .txt file
 	 * 
 	 * writes account number, balance, and name of account holder to 
-	 * a text file in ascending order
+	 * a text file in ascending order, and the hash tree and the balance
+	 * snapshot of the file next to it
+	 * @return true if the master accounts file was written
 	 */
-	private void writeMasterAccountsFile(String fileName) {
-		PrintWriter out = null;
+	private boolean writeMasterAccountsFile(Account[] sorted, String fileName) {
 		try {
-			out = new PrintWriter(fixFileName(fileName));
-			ArrayList<String> temp = new ArrayList<String>();
-			for (int accountNum : accounts.keySet()) {
-				temp.add(accounts.get(accountNum).toString());
-			}
-			Collections.sort(temp);
-			for (String str : temp)
-				out.write(str + '\n');
-
-		} catch (FileNotFoundException e) {
+			AccountFileWriter.writeMasterAccounts(sorted, fixFileName(fileName));
+		} catch (IOException e) {
+			System.out.println("Could not write to file.");
+			return false;
+		}
+		try {
+			AccountHashTree.build(sorted, true).write(AccountHashTree.treeFileName(fixFileName(fileName)));
+			BalanceSnapshot.write(sorted, BalanceSnapshot.snapshotFileName(fixFileName(fileName)));
+		} catch (IOException e) {
+			System.out.println("Could not write to file.");
+		}
+		return true;
+	}
+	
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param fileName - name of the name index
+	 * 
+	 * writes the index front ends search account holder names with
+	 */
+	private void writeNameIndex(Account[] sorted, String fileName) {
+		try {
+			NameIndex.write(sorted, fileName);
+		} catch (IOException e) {
+			System.out.println("Could not write to file.");
+		}
+	}
+	
+	/**
+	 * @param view - snapshot the master accounts file was written from
+	 * @param fileName - name of the delta file
+	 * 
+	 * writes the accounts changed since the last delta and starts a new one
+	 */
+	private void writeDeltaFile(AccountStore.Snapshot view, String fileName) {
+		try {
+			MasterDelta.write(store.dirtyAccounts(), view, fileName);
+			store.clearDirty();
+		} catch (IOException e) {
 			System.out.println("Could not write to file.");
-		} finally {
-			out.close();
 		}
 	}
 //----------------------------MAIN--------------------------
@@ -428,11 +1749,25 @@ public class BackOffice_NCR {
 	 * args[1] = Merged Transaction Summary File name
 	 * args[2] = name of outputted accounts file
 	 * args[3] = name of outputted Master Accounts File
+	 * -resume before the file names resumes from the latest checkpoint of
+	 * an earlier run that wrote the same Master Accounts File
+	 * -daemon before the file names keeps running and takes args[1] as a
+	 * directory of merged transaction summary files, see runDaemon
+	 * -run before the file names runs the given files once, without the
+	 * built in tests
+	 * -intraday before the file names takes args[1] as the port front end
+	 * sessions publish their transactions to, see runIntraday
+	 * -dryrun before the file names takes args[2] as the name of the
+	 * failure report and args[3] as the name of the MAF diff and writes
+	 * nothing else, see dryRun
 	 * 
 	 * main method of BackOffice
 	 * checks arguments for validity then passes them to the constructor
 	 */
 	public static void main(String[] args) {
+		String mode = args.length > 0 && args[0].startsWith("-") ? args[0] : "";
+		if (!mode.isEmpty())
+			args = Arrays.copyOfRange(args, 1, args.length);
 		String accts = null, 
 			   transSumFile = null, 
 			   accountsFileName = null, 
@@ -451,6 +1786,34 @@ public class BackOffice_NCR {
 			System.out.println("Invalid arguments.");
 			System.exit(0);
 		}
+		switch (mode) {
+		case "-run":
+			new BackOffice_NCR(accts, transSumFile, accountsFileName, masterAccountsFileName);
+			return;
+		case "-resume":
+			new BackOffice_NCR(accts, transSumFile, accountsFileName, masterAccountsFileName, true);
+			return;
+		case "-intraday":
+			try {
+				new BackOffice_NCR(accts, Integer.MIN_VALUE, Integer.MAX_VALUE)
+						.runIntraday(Integer.parseInt(transSumFile), accountsFileName, masterAccountsFileName);
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid arguments.");
+			}
+			return;
+		case "-dryrun":
+			if (args.length < 4) {
+				System.out.println("Invalid arguments.");
+				return;
+			}
+			new BackOffice_NCR(accts, Integer.MIN_VALUE, Integer.MAX_VALUE)
+					.dryRun(transSumFile, accountsFileName, masterAccountsFileName);
+			return;
+		case "-daemon":
+			new BackOffice_NCR(accts, Integer.MIN_VALUE, Integer.MAX_VALUE)
+					.runDaemon(transSumFile, accts, accountsFileName, masterAccountsFileName);
+			return;
+		}
 		//new BackOffice_NCR(accts, transSumFile, accountsFileName, masterAccountsFileName);
 		
 		//need to manually set MAF to starting settings for withdraw tests
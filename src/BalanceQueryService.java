@@ -0,0 +1,472 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The BalanceQueryService answers read only balance and existence queries
+ * against the latest Master Accounts File written by the Back Office, so
+ * tellers and reporting tools do not have to search the MAF themselves.
+ *
+ * It serves plain text over the JDK HTTP server on the loopback interface:
+ *
+ * /balance?account=12345678	"12345678 499000" or 404
+ * /exists?account=12345678		"12345678 true" or "12345678 false"
+ * /metrics						query counts, latencies and cache statistics
+ *
+ * The MAF is indexed once by account number (account numbers and line
+ * offsets in two sorted arrays), lines are read on demand and parsed into
+ * Account records kept in a bounded LRU cache. The file is polled for changes,
+ * a new index and an empty cache are built on the side and swapped in with a
+ * single write, so every query sees either the old or the new file. The old
+ * file is closed once the last query reading it finished.
+ */
+public class BalanceQueryService {
+
+	// how often the MAF is checked for a new version, in milliseconds
+	private static final long POLL_INTERVAL = 500;
+
+	private final Path maf;
+	private final int cacheSize;
+	private final Metrics metrics = new Metrics();
+
+	// index and cache of the MAF currently served
+	private volatile Snapshot current;
+
+	/**
+	 * @param maf - master accounts file to serve
+	 * @param cacheSize - maximum number of accounts kept in the cache
+	 * @throws IOException
+	 */
+	public BalanceQueryService(Path maf, int cacheSize) throws IOException {
+		this.maf = maf;
+		this.cacheSize = cacheSize;
+		this.current = new Snapshot(maf, cacheSize);
+	}
+
+	/**
+	 * @param accountNum
+	 * @return the account, or null if it is not in the MAF
+	 * @throws IOException
+	 */
+	public Account balance(int accountNum) throws IOException {
+		Snapshot served = acquire();
+		try {
+			return served.get(accountNum, metrics);
+		} finally {
+			served.release();
+		}
+	}
+
+	/**
+	 * @return the snapshot currently served, which stays open until the
+	 * caller releases it
+	 */
+	private Snapshot acquire() {
+		while (true) {
+			Snapshot served = current;
+			if (served.acquire())
+				return served;
+			// replaced and closed since it was read, the next one is current
+		}
+	}
+
+	/**
+	 * @param accountNum
+	 * @return true if the account is in the MAF
+	 */
+	public boolean exists(int accountNum) {
+		return current.indexOf(accountNum) >= 0;
+	}
+
+	/**
+	 * checks whether the MAF was replaced and swaps in a new snapshot if so,
+	 * the replaced snapshot is closed by the last query still reading it
+	 */
+	private void reloadLoop() {
+		while (true) {
+			try {
+				Thread.sleep(POLL_INTERVAL);
+				Snapshot served = current;
+				if (served.isCurrent(maf))
+					continue;
+				Snapshot fresh = new Snapshot(maf, cacheSize);
+				current = fresh;
+				metrics.reloads.incrementAndGet();
+				served.release();
+				System.out.println("Reloaded " + maf + ", " + fresh.size() + " accounts");
+			} catch (IOException e) {
+				System.err.println("Could not reload " + maf + ", still serving the previous file.");
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param port
+	 * @throws IOException
+	 *
+	 * starts the http server and the reload thread
+	 */
+	public void start(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/balance", exchange -> handle(exchange, true));
+		server.createContext("/exists", exchange -> handle(exchange, false));
+		server.createContext("/metrics", exchange -> respond(exchange, 200, metrics.toString()));
+		server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+		server.start();
+
+		Thread reloader = new Thread(this::reloadLoop, "maf-reload");
+		reloader.setDaemon(true);
+		reloader.start();
+		System.out.println("Serving " + maf + " on port " + server.getAddress().getPort());
+	}
+
+	private void handle(HttpExchange exchange, boolean balance) throws IOException {
+		long start = System.nanoTime();
+		int accountNum;
+		try {
+			accountNum = Integer.parseInt(parameter(exchange, "account"));
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "Invalid Input.");
+			return;
+		}
+
+		int status = 200;
+		String body;
+		if (balance) {
+			try {
+				Account account = balance(accountNum);
+				if (account == null) {
+					status = 404;
+					body = "Account does not exist.";
+				} else {
+					body = accountNum + " " + account.getBalance();
+				}
+			} catch (IOException e) {
+				status = 500; // the line could not be read or is not a MAF record
+				body = "Could not read accounts file.";
+			}
+		} else {
+			body = accountNum + " " + exists(accountNum);
+		}
+		respond(exchange, status, body);
+		metrics.record(balance ? metrics.balance : metrics.exists, System.nanoTime() - start);
+	}
+
+	private static String parameter(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				if (pair.startsWith(name + "="))
+					return pair.substring(name.length() + 1);
+			}
+		}
+		return "";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * index and account cache of one version of the MAF
+	 */
+	private static class Snapshot {
+		private final FileChannel channel;
+		private final Object fileKey;
+		private final long modified, length;
+		private int[] numbers = new int[1024];
+		private long[] offsets = new long[1024];
+		private int size;
+		private final Map<Integer, Account> cache;
+
+		// queries reading the channel, plus one while the snapshot is served
+		private final AtomicInteger users = new AtomicInteger(1);
+
+		private Snapshot(Path maf, final int cacheSize) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(maf, BasicFileAttributes.class);
+			fileKey = attributes.fileKey();
+			modified = attributes.lastModifiedTime().toMillis();
+			length = attributes.size();
+			channel = FileChannel.open(maf, StandardOpenOption.READ);
+			cache = new LinkedHashMap<Integer, Account>(cacheSize * 4 / 3 + 1, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, Account> eldest) {
+					return size() > cacheSize;
+				}
+			};
+			index();
+		}
+
+		/**
+		 * records the account number and starting offset of every line,
+		 * reading the channel opened by this snapshot so the index always
+		 * matches the file the lines are read from, the 00000000 end of file
+		 * marker and blank lines are left out
+		 */
+		private void index() throws IOException {
+			InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+			long offset = 0, lineStart = 0;
+			int number = 0, c;
+			boolean inNumber = true, sorted = true;
+			while ((c = in.read()) != -1) {
+				offset++;
+				if (c == '\n') {
+					if (number != 0) {
+						add(number, lineStart);
+						sorted &= size < 2 || numbers[size - 2] < numbers[size - 1];
+					}
+					lineStart = offset;
+					number = 0;
+					inNumber = true;
+				} else if (inNumber && c >= '0' && c <= '9') {
+					number = number * 10 + (c - '0');
+				} else {
+					inNumber = false;
+				}
+			}
+			if (offset > lineStart && number != 0)
+				add(number, lineStart);
+			if (!sorted)
+				sortIndex();
+		}
+
+		private void add(int number, long offset) {
+			if (size == numbers.length) {
+				numbers = Arrays.copyOf(numbers, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			numbers[size] = number;
+			offsets[size++] = offset;
+		}
+
+		/**
+		 * sorts the index of a MAF that was not written in account order
+		 */
+		private void sortIndex() {
+			long[] packed = new long[size];
+			for (int i = 0; i < size; i++)
+				packed[i] = ((long) numbers[i] << 32) | i;
+			Arrays.sort(packed);
+			int[] sortedNumbers = new int[size];
+			long[] sortedOffsets = new long[size];
+			for (int i = 0; i < size; i++) {
+				sortedNumbers[i] = (int) (packed[i] >>> 32);
+				sortedOffsets[i] = offsets[(int) packed[i]];
+			}
+			numbers = sortedNumbers;
+			offsets = sortedOffsets;
+		}
+
+		private int indexOf(int accountNum) {
+			return Arrays.binarySearch(numbers, 0, size, accountNum);
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private Account get(int accountNum, Metrics metrics) throws IOException {
+			synchronized (cache) {
+				Account hit = cache.get(accountNum);
+				if (hit != null) {
+					metrics.hits.incrementAndGet();
+					return hit;
+				}
+			}
+			int i = indexOf(accountNum);
+			if (i < 0)
+				return null;
+			metrics.misses.incrementAndGet();
+			Account account = parse(readLine(offsets[i]));
+			synchronized (cache) {
+				cache.put(accountNum, account);
+			}
+			return account;
+		}
+
+		/**
+		 * @param offset
+		 * @return the line starting at the offset, without the line break
+		 * @throws IOException
+		 */
+		private String readLine(long offset) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(64);
+			while (true) {
+				int read = channel.read(buffer, offset + buffer.position());
+				for (int i = 0; i < buffer.position(); i++) {
+					if (buffer.get(i) == '\n')
+						return new String(buffer.array(), 0, i, StandardCharsets.UTF_8);
+				}
+				if (read < 0)
+					return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+				if (!buffer.hasRemaining()) {
+					ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+					buffer.flip();
+					grown.put(buffer);
+					buffer = grown;
+				}
+			}
+		}
+
+		/**
+		 * @param line
+		 * @return the account of the MAF record
+		 * @throws IOException if the line is not a MAF record
+		 */
+		private static Account parse(String line) throws IOException {
+			try {
+				String[] fields = line.split(" ", 3);
+				return new Account(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), fields[2]);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IOException("not a MAF record: " + line);
+			}
+		}
+
+		private boolean isCurrent(Path maf) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(maf, BasicFileAttributes.class);
+			return attributes.lastModifiedTime().toMillis() == modified && attributes.size() == length
+					&& (fileKey == null || fileKey.equals(attributes.fileKey()));
+		}
+
+		/**
+		 * @return false if the snapshot was already closed
+		 */
+		private boolean acquire() {
+			int n;
+			do {
+				n = users.get();
+				if (n == 0)
+					return false;
+			} while (!users.compareAndSet(n, n + 1));
+			return true;
+		}
+
+		/**
+		 * closes the channel when the last user releases the snapshot
+		 */
+		private void release() {
+			if (users.decrementAndGet() == 0) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					System.err.println("Could not close the replaced MAF.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * latency and cache counters, latencies are kept in power of two
+	 * microsecond buckets so percentiles can be read from the histogram
+	 */
+	private static class Metrics {
+		private final Latency balance = new Latency("balance"),
+							  exists = new Latency("exists");
+		private final AtomicLong hits = new AtomicLong(),
+								 misses = new AtomicLong(),
+								 reloads = new AtomicLong();
+
+		private void record(Latency latency, long nanos) {
+			latency.count.incrementAndGet();
+			latency.total.addAndGet(nanos);
+			latency.max.accumulateAndGet(nanos, Math::max);
+			long micros = nanos / 1000;
+			int bucket = Math.min(Latency.BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			latency.buckets.incrementAndGet(bucket);
+		}
+
+		@Override
+		public String toString() {
+			return balance + "\n" + exists + "\ncache hits " + hits + " misses " + misses
+					+ "\nreloads " + reloads;
+		}
+	}
+
+	private static class Latency {
+		private static final int BUCKETS = 24;
+		private final String name;
+		private final AtomicLong count = new AtomicLong(),
+								 total = new AtomicLong(),
+								 max = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		private Latency(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @param fraction
+		 * @return upper bound in microseconds of the bucket holding the percentile
+		 */
+		private long percentile(double fraction) {
+			long target = (long) Math.ceil(count.get() * fraction), seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= target && seen > 0)
+					return 1L << i;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			long n = count.get();
+			return name + " count " + n + " mean_us " + (n == 0 ? 0 : total.get() / n / 1000)
+					+ " p50_us " + percentile(0.5) + " p99_us " + percentile(0.99)
+					+ " max_us " + max.get() / 1000;
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file name
+	 * args[1] = port to listen on, 8080 if not given
+	 * args[2] = number of accounts to cache, 100000 if not given
+	 */
+	public static void main(String[] args) {
+		try {
+			Path maf = Paths.get(args[0]);
+			int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080,
+				cacheSize = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+			new BalanceQueryService(maf, cacheSize).start(port);
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not load accounts file.");
+			System.exit(0);
+		}
+	}
+}
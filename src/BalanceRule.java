@@ -0,0 +1,162 @@
+/**
+ * A BalanceRule gives the change a month end posting makes to a balance,
+ * positive for interest, negative for fees. Rules are applied to every
+ * account of a range at once with AccountStore.apply, see there.
+ *
+ * Amounts are in cents and rates in basis points (1/100 of a percent),
+ * fractions of a cent are dropped.
+ *
+ * The main method applies a rule to a MAF as a Back Office session of its
+ * own, the rule's changes are journaled and reported and every output file
+ * of the session is written, see BackOffice_NCR.applyRule.
+ *
+ * Usage:
+ * BalanceRule <MAF> <accounts out> <MAF out> percent <basis points> [low high]
+ * BalanceRule <MAF> <accounts out> <MAF out> fee <cents> [low high]
+ * BalanceRule <MAF> <accounts out> <MAF out> tiered <from:basis points>,... [low high]
+ */
+public interface BalanceRule {
+
+	/**
+	 * @param balance - current balance, never negative
+	 * @return change to the balance, 0 for none
+	 */
+	int change(int balance);
+
+	/**
+	 * @param basisPoints - rate, negative for a fee
+	 * @return rule adding the rate of the balance
+	 */
+	static BalanceRule percentage(int basisPoints) {
+		return balance -> clamp((long) balance * basisPoints / 10000);
+	}
+
+	/**
+	 * @param cents - fee charged to every account
+	 * @return rule taking the fee from the balance
+	 */
+	static BalanceRule flatFee(int cents) {
+		return balance -> -cents;
+	}
+
+	/**
+	 * @param from - lowest balance of every tier, ascending, the first is 0
+	 * @param basisPoints - rate of every tier, negative for a fee
+	 * @return rule adding the rate of every tier to the part of the balance
+	 * that falls into the tier
+	 */
+	static BalanceRule tiered(int[] from, int[] basisPoints) {
+		if (from.length != basisPoints.length)
+			throw new IllegalArgumentException("every tier needs a rate");
+		if (from.length == 0 || from[0] != 0)
+			throw new IllegalArgumentException("the first tier starts at 0");
+		for (int i = 1; i < from.length; i++) {
+			if (from[i] <= from[i - 1])
+				throw new IllegalArgumentException("tiers must be ascending");
+		}
+		final int[] tiers = from.clone(), rates = basisPoints.clone();
+		return balance -> {
+			long change = 0;
+			for (int i = 0; i < tiers.length && balance > tiers[i]; i++) {
+				long top = i + 1 < tiers.length ? Math.min(balance, tiers[i + 1]) : balance;
+				change += (top - tiers[i]) * rates[i];
+			}
+			return clamp(change / 10000);
+		};
+	}
+
+	/**
+	 * @return the change limited to what a balance can ever take, larger
+	 * changes fail the same way
+	 */
+	private static int clamp(long change) {
+		return (int) Math.max(-(Account.MAX_BALANCE + 1L), Math.min(Account.MAX_BALANCE + 1L, change));
+	}
+
+	/**
+	 * totals of applying a rule, combined over the pages of the store
+	 */
+	class Result {
+		long accounts,		// accounts the rule was applied to
+			 credited,		// accounts whose balance was increased
+			 creditVolume,
+			 debited,		// accounts whose balance was decreased
+			 debitVolume,
+			 overMaximum,	// increases refused by the maximum balance
+			 overdrawn;		// decreases refused by the balance
+
+		void combine(Result other) {
+			accounts += other.accounts;
+			credited += other.credited;
+			creditVolume += other.creditVolume;
+			debited += other.debited;
+			debitVolume += other.debitVolume;
+			overMaximum += other.overMaximum;
+			overdrawn += other.overdrawn;
+		}
+
+		/**
+		 * @return number of accounts the rule could not be applied to
+		 */
+		public long failed() {
+			return overMaximum + overdrawn;
+		}
+
+		@Override
+		public String toString() {
+			return "ACCOUNTS " + accounts + "\n"
+					+ "CREDITED " + credited + " " + creditVolume + "\n"
+					+ "DEBITED " + debited + " " + debitVolume + "\n"
+					+ "FAILED " + failed() + " maximum balance exceeded " + overMaximum
+					+ ", value exceeds account balance " + overdrawn;
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file name
+	 * args[1] = name of outputted accounts file
+	 * args[2] = name of outputted Master Accounts File
+	 * args[3] = percent, fee or tiered
+	 * args[4] = basis points, cents, or the tiers as from:basis points pairs
+	 * separated by commas
+	 * args[5], args[6] = lowest and highest account number, all accounts if
+	 * neither is given
+	 */
+	public static void main(String[] args) {
+		try {
+			if (args.length != 5 && args.length != 7) // a range needs both ends
+				throw new IllegalArgumentException();
+			BalanceRule rule;
+			switch (args[3]) {
+			case "percent":
+				rule = percentage(Integer.parseInt(args[4]));
+				break;
+			case "fee":
+				rule = flatFee(Integer.parseInt(args[4]));
+				break;
+			case "tiered":
+				String[] tiers = args[4].split(",");
+				int[] from = new int[tiers.length], rates = new int[tiers.length];
+				for (int i = 0; i < tiers.length; i++) {
+					String[] tier = tiers[i].split(":");
+					from[i] = Integer.parseInt(tier[0]);
+					rates[i] = Integer.parseInt(tier[1]);
+				}
+				rule = tiered(from, rates);
+				break;
+			default:
+				throw new IllegalArgumentException();
+			}
+			int low = args.length == 7 ? Integer.parseInt(args[5]) : Integer.MIN_VALUE,
+				high = args.length == 7 ? Integer.parseInt(args[6]) : Integer.MAX_VALUE;
+
+			BackOffice_NCR office = new BackOffice_NCR(args[0], Integer.MIN_VALUE, Integer.MAX_VALUE);
+			System.out.println(office.applyRule(low, high, rule, args[1], args[2]));
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BalanceSnapshot is a read only binary copy of the balances of a Master
+ * Accounts File, for Front Ends to reject withdrawals and transfers that
+ * would obviously overdraw an account.
+ *
+ * The file is a 16 byte header (magic, version, number of accounts) followed
+ * by one 8 byte record (int account number, int balance) per account in
+ * ascending account number order. Front Ends memory map it read only and
+ * binary search it, so every terminal of a machine shares the same pages of
+ * the page cache and holds no copy of its own.
+ *
+ * The Back Office writes one next to every MAF it writes, MAF.txt produces
+ * MAF.balances. The main method makes one from any MAF.
+ */
+public class BalanceSnapshot {
+
+	private static final int MAGIC = 0x53424231, // "SBB1"
+							 VERSION = 1,
+							 HEADER = 16,
+							 RECORD = 8;
+
+	private final MappedByteBuffer records;
+	private final int count;
+
+	private BalanceSnapshot(MappedByteBuffer records, int count) {
+		this.records = records;
+		this.count = count;
+	}
+
+	/**
+	 * @param fileName - name of the balance snapshot
+	 * @return the snapshot, mapped read only
+	 * @throws IOException if the file is not a balance snapshot
+	 */
+	public static BalanceSnapshot open(String fileName) throws IOException {
+		try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			if (in.size() < HEADER)
+				throw new IOException("not a balance snapshot: " + fileName);
+			MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			int count = map.getInt(8);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+					|| in.size() != HEADER + (long) count * RECORD)
+				throw new IOException("not a balance snapshot: " + fileName);
+			return new BalanceSnapshot(map, count);
+		}
+	}
+
+	/**
+	 * @param accountNum
+	 * @return the balance of the account, or TransactionJournal.NO_ACCOUNT if
+	 * the snapshot does not hold it
+	 */
+	public int balance(int accountNum) {
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1,
+				num = records.getInt(HEADER + mid * RECORD);
+			if (num < accountNum)
+				low = mid + 1;
+			else if (num > accountNum)
+				high = mid - 1;
+			else
+				return records.getInt(HEADER + mid * RECORD + 4);
+		}
+		return TransactionJournal.NO_ACCOUNT;
+	}
+
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param fileName - name of the balance snapshot
+	 * @throws IOException
+	 *
+	 * written to a temporary file that is moved over the old snapshot when
+	 * complete, Front Ends that mapped the old one keep reading it
+	 */
+	public static void write(Account[] sorted, String fileName) throws IOException {
+		int count = 0;
+		for (Account account : sorted) {
+			if (account.getAccountNum() >= 10000000) // skip the end of file marker
+				count++;
+		}
+		Path target = Paths.get(fileName),
+			 temp = Paths.get(fileName + ".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+			for (Account account : sorted) {
+				if (account.getAccountNum() < 10000000)
+					continue;
+				if (buffer.remaining() < RECORD)
+					drain(out, buffer);
+				buffer.putInt(account.getAccountNum()).putInt(account.getBalance());
+			}
+			drain(out, buffer);
+		}
+		AccountFileWriter.replace(temp, target);
+	}
+
+	private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @param MAF - name of a master accounts file
+	 * @param fileName - name of the balance snapshot
+	 * @throws IOException if the MAF can not be read or is not a MAF
+	 */
+	public static void write(String MAF, String fileName) throws IOException {
+		List<Account> accounts = new ArrayList<Account>();
+		try (BufferedReader br = new BufferedReader(new FileReader(MAF))) {
+			String cur;
+			while ((cur = br.readLine()) != null) {
+				String[] line = cur.split(" ", 3);
+				accounts.add(new Account(Integer.parseInt(line[0]), Integer.parseInt(line[1]), line[2]));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("not a master accounts file: " + MAF);
+		}
+		write(accounts.toArray(new Account[0]), fileName);
+	}
+
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of its balance snapshot, MAF.txt produces MAF.balances
+	 */
+	public static String snapshotFileName(String MAFName) {
+		if (MAFName.endsWith(".txt"))
+			MAFName = MAFName.substring(0, MAFName.length() - 4);
+		return MAFName + ".balances";
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file name
+	 * args[1] = name of the balance snapshot, MAF.balances if not given
+	 */
+	public static void main(String[] args) {
+		try {
+			write(args[0], args.length > 1 ? args[1] : snapshotFileName(args[0]));
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not write the balance snapshot.");
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,346 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The BinarySummary format is a compact alternative to the text transaction
+ * summary file, written by Front Ends started with -binary and read by the
+ * Back Office wherever it reads a merged transaction summary file.
+ *
+ * Every transaction is one record:
+ *
+ * opcode		1 byte, the high bit set, bits 0-2 the command, 1 CR, 2 DL,
+ * 				3 DE, 4 WD, 5 TR, 6 ES, bits 3-6 the number of digits the
+ * 				amount has in the text line (0 in older files, read as 3)
+ * account 1	4 byte int, 0 when unused
+ * account 2	4 byte int, 0 when unused
+ * amount		4 byte int, in cents
+ * name length	1 byte, 0 for the unused name (***)
+ * name			name length bytes, only creates and deletes have one
+ *
+ * A deposit, withdrawal or transfer takes 14 bytes instead of about 30. The
+ * file has no header: every opcode has its high bit set, which never starts
+ * a line of a text summary, so the format is recognised from the first byte
+ * of the file (or of any record) and summary files of several Front Ends are
+ * merged by concatenating them, the same way as text ones.
+ *
+ * The Back Office keeps the records of a binary summary as read, in a
+ * Records queue, and decodes each into the line the text format would hold
+ * only when it is applied, so both formats are validated and applied the
+ * same way while a summary of millions of transactions is read in one
+ * sequential read instead of millions of line strings. Amounts are decoded
+ * with the digits they were written with, so a non-zero amount of fewer
+ * than three digits fails a binary record exactly as it fails a text line.
+ *
+ * Usage:
+ * BinarySummary encode <text summary> <binary summary>
+ * BinarySummary decode <binary summary> <text summary>
+ */
+public class BinarySummary {
+
+	// fixed part of a record, before the name
+	static final int HEADER = 14;
+
+	private static final String[] CODES = { "CR", "DL", "DE", "WD", "TR", "ES" };
+	private static final int OPCODE = 0x80,
+							 COMMAND = 0x07,
+							 WIDTH_SHIFT = 3,
+							 MAX_WIDTH = 15;
+
+	private BinarySummary() {
+	}
+
+	/**
+	 * @param first - first byte of a file or record
+	 * @return true if it starts a binary record rather than a text line
+	 */
+	static boolean isBinary(byte first) {
+		return (first & 0x80) != 0;
+	}
+
+	/**
+	 * @param transactions - lines of a text transaction summary
+	 * @param fileName - name of the binary summary
+	 * @throws IOException if a line is not a well formed transaction
+	 */
+	public static void write(List<String> transactions, String fileName) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))) {
+			for (String transaction : transactions)
+				write(transaction, out);
+		}
+	}
+
+	private static void write(String transaction, DataOutputStream out) throws IOException {
+		String[] args = transaction.split(" ", 5);
+		int code = -1;
+		for (int i = 0; i < CODES.length; i++) {
+			if (CODES[i].equals(args[0]))
+				code = i;
+		}
+		if (code < 0 || args.length < 5)
+			throw new IOException("not a transaction: " + transaction);
+		byte[] name = args[4].trim().equals("***") ? new byte[0] : args[4].trim().getBytes(StandardCharsets.UTF_8);
+		if (name.length > 255)
+			throw new IOException("name too long: " + transaction);
+		int width = Math.min(MAX_WIDTH, args[3].length());
+		try {
+			out.writeByte(OPCODE | width << WIDTH_SHIFT | (code + 1));
+			out.writeInt(Integer.parseInt(args[1]));
+			out.writeInt(Integer.parseInt(args[2]));
+			out.writeInt(Integer.parseInt(args[3]));
+		} catch (NumberFormatException e) {
+			throw new IOException("not a transaction: " + transaction);
+		}
+		out.writeByte(name.length);
+		out.write(name);
+	}
+
+	/**
+	 * @param buffer - bytes read, from position to limit
+	 * @return length of the record at the position, or 0 if the buffer does
+	 * not hold all of it
+	 */
+	static int recordLength(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER)
+			return 0;
+		int length = HEADER + (buffer.get(buffer.position() + HEADER - 1) & 0xFF);
+		return buffer.remaining() < length ? 0 : length;
+	}
+
+	/**
+	 * @param buffer - holds a whole record at its position, see recordLength,
+	 * the position is moved past it
+	 * @return the record as a line of the text format, a record with an
+	 * unknown opcode gives a line with the command ?? that fails like an
+	 * unknown text command
+	 */
+	static String decode(ByteBuffer buffer) {
+		int opcode = buffer.get() & 0xFF,
+			code = (opcode & COMMAND) - 1,
+			width = opcode >>> WIDTH_SHIFT & MAX_WIDTH;
+		if (width == 0)
+			width = 3;
+		int aNum1 = buffer.getInt(),
+			aNum2 = buffer.getInt(),
+			money = buffer.getInt(),
+			nameLength = buffer.get() & 0xFF;
+		if (aNum1 < 0 || aNum2 < 0 || money < 0) // never written by a front end, keep the sign
+			return (code >= 0 && code < CODES.length ? CODES[code] : "??") + " " + aNum1 + " " + aNum2 + " "
+					+ money + " " + (nameLength == 0 ? "***" : name(buffer, nameLength));
+		// the line is ASCII up to the name, written straight into bytes
+		byte[] line = new byte[3 + Math.max(8, digits(aNum1)) + 1 + Math.max(8, digits(aNum2)) + 1
+				+ Math.max(width, digits(money)) + 1 + (nameLength == 0 ? 3 : nameLength)];
+		String command = code >= 0 && code < CODES.length ? CODES[code] : "??";
+		line[0] = (byte) command.charAt(0);
+		line[1] = (byte) command.charAt(1);
+		line[2] = ' ';
+		int end = put(line, 3, aNum1, 8);
+		line[end] = ' ';
+		end = put(line, end + 1, aNum2, 8);
+		line[end] = ' ';
+		end = put(line, end + 1, money, width);
+		line[end++] = ' ';
+		if (nameLength == 0) {
+			line[end] = line[end + 1] = line[end + 2] = '*';
+		} else {
+			buffer.get(line, end, nameLength);
+		}
+		return new String(line, StandardCharsets.UTF_8);
+	}
+
+	private static String name(ByteBuffer buffer, int nameLength) {
+		byte[] name = new byte[nameLength];
+		buffer.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	private static int digits(int value) {
+		int digits = 1;
+		while (value >= 10 && digits < 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	/**
+	 * writes the value with leading zeros to at least width digits
+	 * @return index after the last digit
+	 */
+	private static int put(byte[] line, int start, int value, int width) {
+		int end = start + Math.max(width, digits(value));
+		for (int i = end - 1; i >= start; i--) {
+			line[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	/**
+	 * queue of the records of a binary summary held in memory, every record is
+	 * decoded when it reaches the head of the queue
+	 */
+	static class Records implements TransactionQueue {
+		private final ByteBuffer buffer;
+		private final int end;			// end of the last whole record
+		private int size;
+		private String head;			// decoded record at the head, or null
+
+		/**
+		 * @param data - records, possibly followed by a record cut off by the
+		 * end of the file, which is queued as an invalid line
+		 * @param end - end of the last whole record
+		 * @param count - number of whole records
+		 */
+		Records(byte[] data, int end, int count) {
+			buffer = ByteBuffer.wrap(data);
+			this.end = end;
+			size = count + (end < data.length ? 1 : 0);
+		}
+
+		public String peek() {
+			if (head == null && size > 0)
+				head = buffer.position() < end ? decode(buffer) : "?? truncated record";
+			return head;
+		}
+
+		public String poll() {
+			String next = peek();
+			if (next != null) {
+				head = null;
+				size--;
+			}
+			return next;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+			head = null;
+		}
+	}
+
+	/**
+	 * @param fileName - name of a binary summary
+	 * @return its records, read in one go and queued undecoded
+	 * @throws IOException
+	 */
+	static Records records(String fileName) throws IOException {
+		byte[] data = Files.readAllBytes(Paths.get(fileName));
+		ByteBuffer records = ByteBuffer.wrap(data);
+		int count = 0, length;
+		while ((length = recordLength(records)) > 0) {
+			records.position(records.position() + length);
+			count++;
+		}
+		return new Records(data, records.position(), count);
+	}
+
+	/**
+	 * @param fileName - name of a binary summary
+	 * @param offset - byte offset in the file
+	 * @return number of whole records before the offset, or -1 if the offset
+	 * is not the start of a record or the end of the last one
+	 * @throws IOException
+	 */
+	static long recordsBefore(String fileName, long offset) throws IOException {
+		long count = 0, position = 0;
+		try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			while (position < offset && in.read(buffer) != -1) {
+				buffer.flip();
+				int length;
+				while (position < offset && (length = recordLength(buffer)) > 0) {
+					buffer.position(buffer.position() + length);
+					position += length;
+					count++;
+				}
+				buffer.compact();
+			}
+		}
+		return position == offset ? count : -1;
+	}
+
+	/**
+	 * @param fileName - name of a binary summary
+	 * @return the records as lines of the text format
+	 * @throws IOException if the file ends inside a record
+	 */
+	public static List<String> read(String fileName) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				while (recordLength(buffer) > 0)
+					lines.add(decode(buffer));
+				buffer.compact();
+			}
+			if (buffer.position() > 0)
+				throw new IOException("summary ends inside a record: " + fileName);
+		}
+		return lines;
+	}
+
+	/**
+	 * @param fileName - name of a text or binary summary
+	 * @return true if the file is a binary summary
+	 * @throws IOException
+	 */
+	public static boolean isBinary(String fileName) throws IOException {
+		try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			ByteBuffer first = ByteBuffer.allocate(1);
+			return in.read(first) == 1 && isBinary(first.get(0));
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = encode or decode
+	 * args[1] = name of the summary to convert
+	 * args[2] = name of the converted summary
+	 */
+	public static void main(String[] args) {
+		try {
+			switch (args[0]) {
+			case "encode":
+				List<String> lines = new ArrayList<String>();
+				try (BufferedReader br = new BufferedReader(new FileReader(args[1]))) {
+					String cur;
+					while ((cur = br.readLine()) != null)
+						lines.add(cur);
+				}
+				write(lines, args[2]);
+				break;
+			case "decode":
+				try (PrintWriter out = new PrintWriter(args[2])) {
+					for (String line : read(args[1]))
+						out.write(line + "\n");
+				}
+				break;
+			default:
+				System.out.println("Invalid arguments.");
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid arguments.");
+		} catch (IOException e) {
+			System.out.println("Could not convert the summary: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,182 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32C;
+
+/**
+ * A Checkpoint captures the state of a Back Office run so that a run which
+ * died part way through the merged transaction summary file can be resumed
+ * instead of started over.
+ *
+ * It holds the accounts, the byte offset in the summary file of the first
+ * transaction not yet applied, the end of day totals, the accounts changed
+ * so far, the state of the velocity detector and the number of journal
+ * records written so far. Checkpoints are written from an account
+ * snapshot on a background thread to a temporary file that is renamed over
+ * the previous checkpoint once complete, so the checkpoint file on disk is
+ * always a complete and consistent one.
+ *
+ * It also identifies the input files of the run: the name, size and last
+ * modified time of the MAF and of the summary file (see stamp()), and a hash
+ * of the part of the summary file applied before the offset. A run is only
+ * resumed from the same MAF and a summary file whose applied part is
+ * unchanged, so a summary file may be corrected after the offset, say at
+ * the malformed line that ended the run, but never before it.
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x53424334; // "SBC4"
+
+	final String MAFStamp,			// master accounts file the run loaded, see stamp()
+				 MTSFStamp;			// summary file when the checkpoint was written
+	final long appliedHash;			// CRC32C of the summary file before the offset
+	final long offset,				// next unapplied byte of the summary file
+			   lines,				// transactions applied before the offset
+			   journalRecords;		// journal records written before the offset
+	final long[] totals;			// end of day totals, see EndOfDayReport.totals()
+	final Account[] accounts;		// ascending account number order
+	final int[] dirty;				// accounts changed since the MAF was read, see MasterDelta
+	final byte[] velocity;			// see VelocityDetector.state()
+
+	private Checkpoint(String MAFStamp, String MTSFStamp, long appliedHash, long offset, long lines,
+			long journalRecords, long[] totals, Account[] accounts, int[] dirty, byte[] velocity) {
+		this.MAFStamp = MAFStamp;
+		this.MTSFStamp = MTSFStamp;
+		this.appliedHash = appliedHash;
+		this.offset = offset;
+		this.lines = lines;
+		this.journalRecords = journalRecords;
+		this.totals = totals;
+		this.accounts = accounts;
+		this.dirty = dirty;
+		this.velocity = velocity;
+	}
+
+	/**
+	 * @param fileName - name of the checkpoint file
+	 * @param MAFStamp - stamp of the master accounts file the run loaded
+	 * @param MTSFStamp - stamp of the summary file
+	 * @param appliedHash - hash of the summary file before the offset
+	 * @param snapshot - accounts at the checkpoint
+	 * @param offset - next unapplied byte of the summary file
+	 * @param lines - transactions applied so far
+	 * @param journalRecords - journal records written so far
+	 * @param totals - end of day totals so far
+	 * @param dirty - accounts changed so far
+	 * @param velocity - velocity detector state so far
+	 * @throws IOException
+	 */
+	static void write(String fileName, String MAFStamp, String MTSFStamp, long appliedHash,
+			AccountStore.Snapshot snapshot, long offset, long lines, long journalRecords, long[] totals,
+			int[] dirty, byte[] velocity) throws IOException {
+		Path target = Paths.get(fileName),
+			 temp = Paths.get(fileName + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeUTF(MAFStamp);
+			out.writeUTF(MTSFStamp);
+			out.writeLong(appliedHash);
+			out.writeLong(offset);
+			out.writeLong(lines);
+			out.writeLong(journalRecords);
+			out.writeInt(totals.length);
+			for (long total : totals)
+				out.writeLong(total);
+			out.writeInt(snapshot.size());
+			for (Account account : snapshot.toArray()) {
+				out.writeInt(account.getAccountNum());
+				out.writeInt(account.getBalance());
+				out.writeUTF(account.getName());
+			}
+			out.writeInt(dirty.length);
+			for (int accountNum : dirty)
+				out.writeInt(accountNum);
+			out.writeInt(velocity.length);
+			out.write(velocity);
+		}
+		AccountFileWriter.replace(temp, target);
+	}
+
+	/**
+	 * @param fileName - name of the checkpoint file
+	 * @return the checkpoint, or null if there is none
+	 * @throws IOException if the file is not a checkpoint
+	 */
+	static Checkpoint read(String fileName) throws IOException {
+		Path path = Paths.get(fileName);
+		if (!Files.exists(path))
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a checkpoint: " + fileName);
+			String MAFStamp = in.readUTF(),
+				   MTSFStamp = in.readUTF();
+			long appliedHash = in.readLong();
+			long offset = in.readLong(),
+				 lines = in.readLong(),
+				 journalRecords = in.readLong();
+			long[] totals = new long[in.readInt()];
+			for (int i = 0; i < totals.length; i++)
+				totals[i] = in.readLong();
+			Account[] accounts = new Account[in.readInt()];
+			for (int i = 0; i < accounts.length; i++) {
+				int num = in.readInt(),
+					balance = in.readInt();
+				accounts[i] = new Account(num, balance, in.readUTF());
+			}
+			int[] dirty = new int[in.readInt()];
+			for (int i = 0; i < dirty.length; i++)
+				dirty[i] = in.readInt();
+			byte[] velocity = new byte[in.readInt()];
+			in.readFully(velocity);
+			return new Checkpoint(MAFStamp, MTSFStamp, appliedHash, offset, lines, journalRecords, totals,
+					accounts, dirty, velocity);
+		}
+	}
+
+	/**
+	 * @param fileName
+	 * @return absolute name, size and last modified time of the file
+	 * @throws IOException if the file does not exist
+	 */
+	static String stamp(String fileName) throws IOException {
+		Path file = Paths.get(fileName);
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return file.toAbsolutePath().normalize() + " " + attributes.size() + " "
+				+ attributes.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * @param hash - hash of the file up to from, continued
+	 * @param fileName
+	 * @param from - first byte to hash
+	 * @param to - end of the bytes to hash
+	 * @throws IOException if the file ends before to
+	 */
+	static void hash(CRC32C hash, String fileName, long from, long to) throws IOException {
+		try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+			long position = from;
+			while (position < to) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), to - position));
+				int read = in.read(buffer, position);
+				if (read < 0)
+					throw new IOException("summary file shorter than the checkpoint: " + fileName);
+				buffer.flip();
+				hash.update(buffer);
+				position += read;
+			}
+		}
+	}
+}
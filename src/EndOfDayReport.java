@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.Collection;
+
+/**
+ * The EndOfDayReport collects the daily totals of the Back Office while the
+ * transactions are applied, so operations does not have to re-parse the MAF
+ * and the merged transaction summary file to get them.
+ *
+ * Deposit, withdraw and transfer totals and the created/deleted counts are
+ * accumulated one transaction at a time, the totals of a balance rule are
+ * added as they were applied. The balance totals and the balance
+ * distribution are produced by a single parallel reduction over the accounts
+ * when the report is written at the end of the session.
+ */
+public class EndOfDayReport {
+
+	// number of balance distribution buckets, bucket i holds the balances
+	// that have i digits (in cents), bucket 0 holds the empty accounts
+	private static final int BUCKETS = 10;
+
+	private long depositCount, depositVolume,
+				 withdrawCount, withdrawVolume,
+				 transferCount, transferVolume,
+				 created, deleted;
+
+	// totals of the balance rule applied in the session, null when none was
+	private BalanceRule.Result rule;
+
+	/**
+	 * @param value
+	 * records a successful deposit
+	 */
+	public void deposit(int value) {
+		depositCount++;
+		depositVolume += value;
+	}
+
+	/**
+	 * @param value
+	 * records a successful withdraw
+	 */
+	public void withdraw(int value) {
+		withdrawCount++;
+		withdrawVolume += value;
+	}
+
+	/**
+	 * @param value
+	 * records a successful transfer
+	 */
+	public void transfer(int value) {
+		transferCount++;
+		transferVolume += value;
+	}
+
+	/**
+	 * records a successful account creation
+	 */
+	public void accountCreated() {
+		created++;
+	}
+
+	/**
+	 * records a successful account deletion
+	 */
+	public void accountDeleted() {
+		deleted++;
+	}
+
+	/**
+	 * @param result
+	 * records the totals of a balance rule applied to the accounts
+	 */
+	public void balanceRule(BalanceRule.Result result) {
+		if (rule == null)
+			rule = new BalanceRule.Result();
+		rule.combine(result);
+	}
+
+	/**
+	 * @return the transaction totals, used to save them in a checkpoint
+	 */
+	long[] totals() {
+		return new long[] { depositCount, depositVolume, withdrawCount, withdrawVolume,
+				transferCount, transferVolume, created, deleted };
+	}
+
+	/**
+	 * @param totals - totals as returned by totals()
+	 * restores the transaction totals saved in a checkpoint
+	 */
+	void restore(long[] totals) {
+		depositCount = totals[0];
+		depositVolume = totals[1];
+		withdrawCount = totals[2];
+		withdrawVolume = totals[3];
+		transferCount = totals[4];
+		transferVolume = totals[5];
+		created = totals[6];
+		deleted = totals[7];
+	}
+
+	/**
+	 * @param accounts - accounts currently held by the back office
+	 * @param fileName - name of the report file
+	 *
+	 * reduces the accounts in parallel into balance totals and writes them
+	 * along with the transaction totals to the report file, through a
+	 * temporary file that replaces the old report when complete
+	 */
+	public void write(Collection<Account> accounts, String fileName) {
+		Totals totals = accounts.parallelStream()
+				.collect(Totals::new, Totals::add, Totals::combine);
+
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(fileName + ".tmp");
+			out.write("DE " + depositCount + " " + depositVolume + "\n");
+			out.write("WD " + withdrawCount + " " + withdrawVolume + "\n");
+			out.write("TR " + transferCount + " " + transferVolume + "\n");
+			out.write("CR " + created + "\n");
+			out.write("DL " + deleted + "\n");
+			if (rule != null) {
+				out.write("RULE CREDITED " + rule.credited + " " + rule.creditVolume + "\n");
+				out.write("RULE DEBITED " + rule.debited + " " + rule.debitVolume + "\n");
+				out.write("RULE FAILED " + rule.failed() + "\n");
+			}
+			out.write("ACCOUNTS " + totals.count + "\n");
+			out.write("BALANCE " + totals.sum + " " + (totals.count == 0 ? 0 : totals.min) + " "
+					+ (totals.count == 0 ? 0 : totals.max) + "\n");
+			for (int i = 0; i < BUCKETS; i++)
+				out.write("DIST " + i + " " + totals.buckets[i] + "\n");
+			out.close();
+			if (out.checkError())
+				throw new IOException("could not write " + fileName);
+			AccountFileWriter.replace(Paths.get(fileName + ".tmp"), Paths.get(fileName));
+		} catch (IOException e) {
+			System.out.println("Could not write to file.");
+		} finally {
+			if (out != null)
+				out.close();
+		}
+	}
+
+	/**
+	 * mutable container used by the parallel reduction, every worker fills
+	 * its own instance and the instances are combined pairwise at the end
+	 */
+	private static class Totals {
+		private long count, sum;
+		private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		private final long[] buckets = new long[BUCKETS];
+
+		private void add(Account account) {
+			if (account.getAccountNum() < 10000000) // end of file marker, not an account
+				return;
+			int balance = account.getBalance();
+			count++;
+			sum += balance;
+			min = Math.min(min, balance);
+			max = Math.max(max, balance);
+			buckets[bucket(balance)]++;
+		}
+
+		private void combine(Totals other) {
+			count += other.count;
+			sum += other.sum;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] += other.buckets[i];
+		}
+
+		private static int bucket(int balance) {
+			int digits = 0;
+			while (balance > 0 && digits < BUCKETS - 1) {
+				balance /= 10;
+				digits++;
+			}
+			return digits;
+		}
+	}
+}
@@ -11,6 +11,30 @@
  * SimBank requires two arguments when run, the name of the accounts file first, 
  * then the name of the transaction summary file to be generated on logout
  * 
+ * With -balances <balance snapshot> before them, SimBank also maps the balance
+ * snapshot written with the last Master Accounts File (see BalanceSnapshot) and
+ * rejects withdrawals and transfers the snapshot balance, less the session's
+ * own withdrawals and transfers, can not cover. The snapshot is mapped again
+ * at every login, so a terminal left running checks against the last MAF
+ * 
+ * With -publish <port> before them, every accepted transaction is also sent
+ * right away to a Back Office running in intraday mode on that port (see
+ * TransactionChannel), the transaction summary file only keeps the
+ * transactions the Back Office did not confirm applying, so the nightly run
+ * does not apply them again
+ * 
+ * With -reservations <reservation table> before them, creates and deletes
+ * first claim the account number in a table shared by all Front Ends of the
+ * machine (see ReservationTable), a number another session already created
+ * or deleted today is refused
+ * 
+ * With -binary before them, the transaction summary file is written in the
+ * compact binary format (see BinarySummary) instead of as text
+ * 
+ * With -names <name index> before them, agents can search the accounts of
+ * the last Master Accounts File by the start of the holder name (see
+ * NameIndex)
+ * 
  * The program is intended to be run by using std input as a way of navigating
  * through the program menus and features. However, during testing std input is 
  * simulated using Bash scripts utilizing pipes to provide input from text files
@@ -26,6 +50,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.SubmissionPublisher;
 
 public class FrontEnd_NCR {
 	private Scanner reader = new Scanner(System.in);
@@ -35,7 +60,9 @@ public class FrontEnd_NCR {
 	// output messages
 	private final String INVALID = "Invalid Input.", NOACCOUNT = "Account does not exist.",
 			YESACCOUNT = "Account already exists.", LIMIT = "Daily transaction limit exceeded.",
-			PERMS = "You do not have authorization to run this command.";
+			PERMS = "You do not have authorization to run this command.",
+			FUNDS = "Insufficient funds.",
+			RESERVED = "Account number reserved by another terminal.";
 
 	private String transSumFileName, accountsFile;
 
@@ -49,13 +76,68 @@ public class FrontEnd_NCR {
 	// via withdraw or transfer commands
 	private Map<Integer, Integer> withdrawAmounts;
 
+	// read only balances of the last master accounts file, mapped again at
+	// every login, null when overdrafts are left to the back office
+	private String balancesFile;
+	private BalanceSnapshot balances;
+
+	// amount taken from every account by the session's accepted withdrawals
+	// and transfers, only kept when there is a balance snapshot, deposits are
+	// not counted as the back office may still reject them
+	private Map<Integer, Integer> pendingDebits;
+
+	// port of the intraday back office, 0 when transactions only go to the
+	// summary file, the publisher of the current session's transactions and
+	// the number of them the back office applied, left out of the summary
+	private int publishPort;
+	private SubmissionPublisher<String> publisher;
+	private TransactionChannel.Sender sender;
+	private int published;
+
+	// account number claims shared with the other front ends, null when
+	// every terminal only checks its own accounts list
+	private ReservationTable reservations;
+
+	// true when the transaction summary file is written as a BinarySummary
+	private boolean binarySummary;
+
+	// holder names of the last master accounts file, mapped again at every
+	// login, null when agents can not search by name
+	private String namesFile;
+	private NameIndex names;
+
+	// most accounts a name search prints
+	private static final int SEARCH_LIMIT = 20;
+
 	// constructor, runs on program start
 	public FrontEnd_NCR(String accountsFile, String transSumFileName) {
+		this(accountsFile, transSumFileName, null, 0, null, false, null);
+	}
+
+	// constructor, rejects obvious overdrafts when given a balance snapshot,
+	// publishes the transactions when given a back office port, claims
+	// created and deleted account numbers when given a reservation table,
+	// writes a binary transaction summary file when asked to and lets agents
+	// search by holder name when given a name index
+	public FrontEnd_NCR(String accountsFile, String transSumFileName, String balancesFile, int publishPort,
+			String reservationsFile, boolean binarySummary, String namesFile) {
 		transactions = new ArrayList<String>();
 		accounts = new ArrayList<Integer>();
 		withdrawAmounts = new HashMap<Integer, Integer>();
+		pendingDebits = new HashMap<Integer, Integer>();
 		this.transSumFileName = transSumFileName;
 		this.accountsFile = accountsFile;
+		this.publishPort = publishPort;
+		this.binarySummary = binarySummary;
+		this.balancesFile = balancesFile;
+		this.namesFile = namesFile;
+		if (reservationsFile != null) {
+			try {
+				reservations = ReservationTable.open(reservationsFile);
+			} catch (IOException e) {
+				System.out.println("Could not load reservation table.");
+			}
+		}
 		frontEnd();
 	}
 
@@ -86,6 +168,9 @@ public class FrontEnd_NCR {
 				case "transfer":
 					transfer();
 					break;
+				case "search":
+					search();
+					break;
 				case "logout":
 					logout();
 					break;
@@ -108,9 +193,20 @@ public class FrontEnd_NCR {
 			System.out.println("Please login to start session");
 			String input = reader.nextLine().trim().toLowerCase();
 
+			// the event starts once the user answered, so it does not include
+			// their time at the prompts
 			if (input.equals("login") && loginType()) {
+				SimBankEvents.Login event = new SimBankEvents.Login();
+				event.begin();
 				bLoggedIn = true;
 				readAccountsFile(accountsFile);
+				openBalances();
+				openNames();
+				startReservations();
+				openChannel();
+				event.agent = bAgentMode;
+				event.accounts = accounts.size();
+				event.commit();
 				return;
 			} else {
 				System.out.println(INVALID);
@@ -123,14 +219,21 @@ public class FrontEnd_NCR {
 	 * logged in flag (bLoggedIn) to false
 	 */
 	private void logout() {
+		SimBankEvents.Logout event = new SimBankEvents.Logout();
+		event.begin();
 		String transInfo = "ES 00000000 00000000 000 ***";
 		transactions.add(transInfo);
 		System.out.println("Thank you for using SimBank today");
 		bLoggedIn = false;
+		closeChannel();
 		writeTransactionFile();
+		endReservations();
+		event.transactions = transactions.size();
+		event.commit();
 		accounts.clear();
 		transactions.clear();
 		withdrawAmounts.clear();
+		pendingDebits.clear();
 	}
 
 	/**
@@ -155,9 +258,9 @@ public class FrontEnd_NCR {
 				accountName = takeName();
 				bNameOK = validateName(accountName);
 
-				if (bNameOK) {
+				if (bNameOK && reserve(inputNum, ReservationTable.CREATE)) {
 					transInfo += accountName;
-					transactions.add(transInfo);
+					accept(transInfo);
 					accounts.add(inputNum);
 					System.out.println("Account created");
 				}
@@ -188,9 +291,9 @@ public class FrontEnd_NCR {
 				accountName = takeName();
 				bNameOK = validateName(accountName);
 
-				if (bNameOK) {
+				if (bNameOK && reserve(inputNum, ReservationTable.DELETE)) {
 					transInfo += accountName;
-					transactions.add(transInfo);
+					accept(transInfo);
 					accounts.remove(accounts.indexOf(inputNum));
 					System.out.println("Account deleted");
 				}
@@ -199,6 +302,35 @@ public class FrontEnd_NCR {
 			System.out.println(PERMS);
 	}
 
+	/**
+	 * lists the accounts whose holder name starts with the given text, when
+	 * run in "agent" mode with a name index, accounts created or deleted
+	 * since the last master accounts file are not reflected
+	 */
+	private void search() {
+		if (!bAgentMode) {
+			System.out.println(PERMS);
+			return;
+		}
+		if (names == null) {
+			System.out.println(INVALID);
+			return;
+		}
+		System.out.print("Start of the account holder's name: ");
+		String prefix = reader.nextLine().trim();
+		if (prefix.isEmpty()) {
+			System.out.println(INVALID);
+			return;
+		}
+		List<String> found = names.search(prefix, SEARCH_LIMIT + 1);
+		if (found.isEmpty())
+			System.out.println("No accounts found.");
+		for (int i = 0; i < found.size() && i < SEARCH_LIMIT; i++)
+			System.out.println(found.get(i));
+		if (found.size() > SEARCH_LIMIT)
+			System.out.println("More accounts match, enter more of the name.");
+	}
+
 	/**
 	 * logs a deposit transaction to a valid account
 	 */
@@ -222,7 +354,7 @@ public class FrontEnd_NCR {
 			if (bValOK) {
 				transInfo += dVal + " ";
 				transInfo += "***";
-				transactions.add(transInfo);
+				accept(transInfo);
 			}
 		}
 	}
@@ -244,7 +376,7 @@ public class FrontEnd_NCR {
 			transInfo += accountNum + " 00000000 ";
 			System.out.print("Amount to withdraw: ");
 			withdrawValue = Integer.parseInt(takeNumber());
-			bValOK = validateMoney(withdrawValue);
+			bValOK = validateMoney(withdrawValue) && fundsAvailable(accountNum, withdrawValue);
 
 			if (bValOK && withdrawAmounts.containsKey(accountNum)) {
 				if (withdrawAmounts.get(accountNum) + withdrawValue <= 100000) {
@@ -254,12 +386,13 @@ public class FrontEnd_NCR {
 					bValOK = false; // transaction limit exceeded
 					System.out.println(LIMIT);
 				}
-			} else
+			} else if (bValOK)
 				withdrawAmounts.put(accountNum, withdrawValue);
 
 			if (bValOK) {
 				transInfo += withdrawValue + " ***";
-				transactions.add(transInfo);
+				accept(transInfo);
+				addPendingDebit(accountNum, withdrawValue);
 			}
 		}
 	}
@@ -289,7 +422,7 @@ public class FrontEnd_NCR {
 				System.out.print("Enter the amount to transfer: ");
 				String muns = takeNumber();
 				amount = Integer.parseInt(muns);
-				bValOK = validateMoney(amount);
+				bValOK = validateMoney(amount) && fundsAvailable(fromAccount, amount);
 
 				if (bValOK && withdrawAmounts.containsKey(fromAccount)) {
 					if (withdrawAmounts.get(fromAccount) + amount <= 100000) {
@@ -299,12 +432,13 @@ public class FrontEnd_NCR {
 						bValOK = false; // transaction limit exceeded
 						System.out.println(LIMIT);
 					}
-				} else
+				} else if (bValOK)
 					withdrawAmounts.put(fromAccount, amount);
 
 				if (bValOK) {
 					transInfo += amount + " ***";
-					transactions.add(transInfo);
+					accept(transInfo);
+					addPendingDebit(fromAccount, amount);
 				}
 			}
 		}
@@ -429,30 +563,203 @@ public class FrontEnd_NCR {
 			return (num <= 100000);
 	}
 
+	/**
+	 * records an accepted transaction for the summary file and publishes it
+	 * to the intraday back office, waiting while the back office is behind
+	 * 
+	 * @param transInfo
+	 */
+	private void accept(String transInfo) {
+		transactions.add(transInfo);
+		if (publisher != null)
+			publisher.submit(transInfo);
+	}
+
+	/**
+	 * connects the session to the intraday back office, if there is one
+	 */
+	private void openChannel() {
+		if (publishPort <= 0)
+			return;
+		try {
+			sender = new TransactionChannel.Sender(publishPort);
+			publisher = new SubmissionPublisher<String>();
+			publisher.subscribe(sender);
+		} catch (IOException e) {
+			System.out.println("Could not connect to the back office.");
+		}
+	}
+
+	/**
+	 * ends the session's stream once the published transactions are sent and
+	 * waits for the back office to confirm the ones it applied
+	 */
+	private void closeChannel() {
+		published = 0;
+		if (publisher != null) {
+			publisher.close();
+			publisher = null;
+			try {
+				published = (int) sender.confirmed();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sender = null;
+		}
+	}
+
+	/**
+	 * checks a withdrawal or transfer against the balance snapshot, accounts
+	 * the snapshot does not hold (created since) are left to the back office
+	 * 
+	 * @param accountNum
+	 * @param amount
+	 * @return false if the snapshot balance less the session's pending debits
+	 *         can not cover the amount
+	 */
+	private boolean fundsAvailable(int accountNum, int amount) {
+		if (balances == null)
+			return true;
+		int balance = balances.balance(accountNum);
+		if (balance == TransactionJournal.NO_ACCOUNT
+				|| amount <= (long) balance - pendingDebits.getOrDefault(accountNum, 0))
+			return true;
+		System.out.println(FUNDS);
+		return false;
+	}
+
+	/**
+	 * claims the account number for a create or delete in the shared
+	 * reservation table
+	 * 
+	 * @param accountNum
+	 * @param kind - ReservationTable.CREATE or ReservationTable.DELETE
+	 * @return false if another session created or deleted the account today
+	 */
+	private boolean reserve(int accountNum, int kind) {
+		if (reservations == null || reservations.claim(accountNum, kind))
+			return true;
+		System.out.println(RESERVED);
+		return false;
+	}
+
+	/**
+	 * remembers the amount an accepted withdrawal or transfer takes from an
+	 * account
+	 * 
+	 * @param accountNum
+	 * @param amount
+	 */
+	private void addPendingDebit(int accountNum, int amount) {
+		if (balances != null)
+			pendingDebits.merge(accountNum, amount, Integer::sum);
+	}
+
+	/**
+	 * starts the session's claims in the reservation table, the claims of the
+	 * session before stay with it
+	 */
+	private void startReservations() {
+		if (reservations == null)
+			return;
+		try {
+			reservations.startSession();
+		} catch (IOException e) {
+			System.out.println("Could not load reservation table.");
+		}
+	}
+
+	/**
+	 * marks the session ended in the reservation table once its transaction
+	 * summary file is written, its claims are cleared with the next day
+	 */
+	private void endReservations() {
+		if (reservations == null)
+			return;
+		try {
+			reservations.endSession();
+		} catch (IOException e) {
+			System.out.println("Could not load reservation table.");
+		}
+	}
+
+	/**
+	 * maps the balance snapshot again, so the session checks against the
+	 * snapshot of the last master accounts file, the one already mapped is
+	 * kept if it can not be loaded
+	 */
+	private void openBalances() {
+		if (balancesFile == null)
+			return;
+		try {
+			balances = BalanceSnapshot.open(balancesFile);
+		} catch (IOException e) {
+			System.out.println("Could not load balance snapshot.");
+		}
+	}
+
+	/**
+	 * maps the name index again, so agents search the holder names of the
+	 * last master accounts file, the one already mapped is kept if it can
+	 * not be loaded
+	 */
+	private void openNames() {
+		if (namesFile == null)
+			return;
+		try {
+			names = NameIndex.open(namesFile);
+		} catch (IOException e) {
+			System.out.println("Could not load name index.");
+		}
+	}
+
 	/**
 	 * Writes all elements in ArrayList 'transactions' to individual lines in a
-	 * new text file (transactions.txt)
+	 * new text file (transactions.txt), except those the intraday back office
+	 * already applied
 	 */
 	private void writeTransactionFile() {
+		SimBankEvents.TransactionSummaryWrite event = new SimBankEvents.TransactionSummaryWrite();
+		event.begin();
+		List<String> unapplied = transactions.subList(published, transactions.size());
+		String fileName = summaryFileName();
+		if (binarySummary) {
+			try {
+				BinarySummary.write(unapplied, fileName);
+			} catch (IOException e) {
+				System.out.println("Could not write to file.");
+			}
+			event.file = fileName;
+			event.transactions = unapplied.size();
+			event.commit();
+			return;
+		}
 		PrintWriter out = null;
 		try {
-			if (transSumFileName == null || transSumFileName.length() < 5) {// "X.txt".length() == 5
-				if (transSumFileName.substring(transSumFileName.length() - 4, transSumFileName.length()) == ".txt")
-					out = new PrintWriter("transactions.txt");
-				else
-					out = new PrintWriter(transSumFileName + ".txt");
-			} else {
-				out = new PrintWriter(transSumFileName);
-			}
+			out = new PrintWriter(fileName);
 
-			for (String s : transactions) {
+			for (String s : unapplied) {
 				out.write(s + "\n");
 			}
 		} catch (FileNotFoundException e) {
 			System.out.println("Could not write to file.");
 		} finally {
-			out.close();
+			if (out != null)
+				out.close();
 		}
+		event.file = fileName;
+		event.transactions = unapplied.size();
+		event.commit();
+	}
+
+	/**
+	 * @return name the transaction summary file is written to, in either
+	 * format, a name too short to end in .txt gets .txt added
+	 */
+	private String summaryFileName() {
+		if (transSumFileName.length() < 5) // "X.txt".length() == 5
+			return transSumFileName + ".txt";
+		return transSumFileName;
 	}
 
 	/**
@@ -497,20 +804,51 @@ public class FrontEnd_NCR {
 	/**
 	 * args[0] is the name and path of the accounts file that is read into the
 	 * front end to populate the ArrayList containing account numbers
+	 * -balances <balance snapshot> before the file names turns on early
+	 * rejection of overdrafts
+	 * -publish <port> before the file names sends the accepted transactions
+	 * to the intraday back office on the port
+	 * -reservations <reservation table> before the file names claims created
+	 * and deleted account numbers in the table shared by all front ends
+	 * -binary before the file names writes a binary transaction summary file
+	 * -names <name index> before the file names lets agents search accounts
+	 * by holder name
 	 * 
 	 * @param args
 	 */
 	public static void main(String[] args) {
 		String accts = null;
 		String transSumFile = null;
+		String balancesFile = null;
+		int publishPort = 0;
+		String reservationsFile = null;
+		boolean binarySummary = false;
+		String namesFile = null;
 		try {
+			while (args[0].startsWith("-")) {
+				int used = 2; // flag and its value
+				if (args[0].equals("-binary")) {
+					binarySummary = true;
+					used = 1;
+				} else if (args[0].equals("-balances"))
+					balancesFile = args[1];
+				else if (args[0].equals("-publish"))
+					publishPort = Integer.parseInt(args[1]);
+				else if (args[0].equals("-reservations"))
+					reservationsFile = args[1];
+				else if (args[0].equals("-names"))
+					namesFile = args[1];
+				else
+					throw new ArrayIndexOutOfBoundsException();
+				args = Arrays.copyOfRange(args, used, args.length);
+			}
 			accts = args[0];
 			transSumFile = args[1];
-		} catch (ArrayIndexOutOfBoundsException e) {
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
 			System.out.println("Invalid arguments.");
 			System.exit(0);
 		}
-		new FrontEnd_NCR(accts, transSumFile);
+		new FrontEnd_NCR(accts, transSumFile, balancesFile, publishPort, reservationsFile, binarySummary, namesFile);
 	}
 
 }
\ No newline at end of file
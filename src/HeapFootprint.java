@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HeapFootprint measures how much heap the structures of a Back Office
+ * run and of a Front End session take for a given Master Accounts File and
+ * Merged Transaction Summary File, and projects the heap needed for a
+ * target number of accounts and a target summary file size, so heaps can
+ * be sized before the end of day run instead of after it ran out of memory.
+ *
+ * Every structure is built the way the program builds it and measured as
+ * the growth of the used heap after full garbage collections, so the
+ * numbers are what this JVM (its collector, compressed references and
+ * object alignment) really uses:
+ *
+ * accounts			the AccountStore of a loaded Back Office, with its Account
+ *					objects and their names in the shared NameDictionary
+ * transactions		the transaction queue of the summary file, text lines or
+ *					undecoded binary records, with their line lengths
+ * end of day		the sorted Account array every output file is written from,
+ *					held while the session ends
+ * accounts list	the Front End's list of valid account numbers
+ * withdrawals		the Front End's withdrawAmounts, with every account
+ *					withdrawn from in the session, its largest possible size
+ *
+ * The Front End's constructor starts its session, so its two structures are
+ * built here as readAccountsFile and withdraw fill them.
+ *
+ * What every run has whatever its files, classes, static state and empty
+ * buffers, is measured first with an empty MAF and summary file and
+ * reported as fixed.
+ *
+ * The store's page directory and dirty marks grow with the highest account
+ * number rather than the number of accounts. That part is measured on its
+ * own, as a store loaded with a few accounts spread over the MAF's range of
+ * account numbers, and reported as account range; it is taken out of the
+ * accounts measured, and the projection adds it for the whole 8 digit range
+ * up to 99999999, which a full bank reaches whatever its number of
+ * accounts. The end of file marker, account 00000000, is not counted as an
+ * account.
+ *
+ * The projection adds the fixed part and the range part to every other
+ * structure scaled linearly: accounts by number of accounts, the
+ * transaction queue by summary file bytes. The suggested maximum heap is
+ * twice the live structures, the room a collector needs to run without the
+ * run spending its time collecting.
+ *
+ * Usage:
+ * HeapFootprint <MAF> <MTSF> [target accounts] [target MTSF bytes]
+ *
+ * run it with a maximum heap large enough for the given files, the targets
+ * default to the sizes of the given files
+ */
+public class HeapFootprint {
+
+	// full collections per measurement, the smallest used heap is taken
+	private static final int COLLECTIONS = 4;
+
+	// account numbers of the 8 digit range, the range the projection is made for
+	private static final int FIRST_ACCOUNT = 10000000,
+							 LAST_ACCOUNT = 99999999;
+
+	// account numbers between the accounts a range is measured with
+	private static final int RANGE_STEP = 1 << 20;
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	private HeapFootprint() {
+	}
+
+	/**
+	 * @return bytes of heap used by live objects
+	 */
+	private static long used() {
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < COLLECTIONS; i++) {
+			System.gc();
+			used = Math.min(used, MEMORY.getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+
+	/**
+	 * @param lowest - lowest account number
+	 * @param highest - highest account number
+	 * @return bytes of heap the page directory and dirty marks of a store
+	 * loaded with accounts from lowest to highest use
+	 *
+	 * the store is loaded in account order with one account every RANGE_STEP
+	 * numbers, so the directory and dirty marks double as they do while a
+	 * MAF is loaded, the few pages and accounts that takes are counted too
+	 */
+	private static long rangeBytes(int lowest, int highest) {
+		List<Account> path = new ArrayList<Account>();
+		for (long accountNum = lowest; accountNum < highest; accountNum += RANGE_STEP)
+			path.add(new Account((int) accountNum, 0, "range"));
+		path.add(new Account(highest, 0, "range"));
+		long start = used();
+		AccountStore store = new AccountStore();
+		for (Account account : path)
+			store.put(account);
+		store.clearDirty(); // keeps the dirty marks allocated, as a loaded store does
+		long bytes = used() - start;
+		Reference.reachabilityFence(store);
+		return bytes;
+	}
+
+	private static String line(String structure, long count, String unit, long bytes) {
+		return String.format("%-14s %,12d %-13s %,15d bytes %9.1f bytes per %s", structure, count, unit, bytes,
+				count == 0 ? 0.0 : (double) bytes / count, unit.substring(0, unit.length() - 1));
+	}
+
+	private static String megabytes(double bytes) {
+		return String.format("%,.0f MB", Math.ceil(bytes / (1 << 20)));
+	}
+
+	/**
+	 * @return the live heap projected for the process and the maximum heap
+	 * suggested for it, twice the live heap
+	 */
+	private static String projected(String process, double live) {
+		return String.format("%-14s %s live, suggested -Xmx%.0fm", process, megabytes(live),
+				Math.ceil(2 * live / (1 << 20)));
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file name
+	 * args[1] = Merged Transaction Summary File name
+	 * args[2] = number of accounts to project for, the MAF's if not given
+	 * args[3] = size in bytes of the summary file to project for, the given
+	 * file's if not given
+	 */
+	public static void main(String[] args) {
+		String MAF = null, MTSF = null;
+		long targetAccounts = -1, targetBytes = -1, fileBytes = 0;
+		try {
+			MAF = args[0];
+			MTSF = args[1];
+			if (args.length > 2)
+				targetAccounts = Long.parseLong(args[2]);
+			if (args.length > 3)
+				targetBytes = Long.parseLong(args[3]);
+			fileBytes = Files.size(Paths.get(MTSF));
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not read the transaction summary file.");
+			System.exit(0);
+		}
+
+		// classes, static state and buffers every run has, loaded and measured
+		// with an empty MAF and summary file so they do not count per account
+		long start = used();
+		BackOffice_NCR empty = null;
+		try {
+			Path none = Files.createTempFile("footprint", ".txt");
+			NameDictionary.shared();
+			empty = new BackOffice_NCR(none.toString(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+			empty.queueTransactions(none.toString());
+			empty.snapshot().join().toArray();
+			Files.delete(none);
+		} catch (IOException e) {
+			System.out.println("Could not create a temporary file.");
+			System.exit(0);
+		}
+		long fixedBytes = used() - start;
+
+		// back office
+		start = used();
+		BackOffice_NCR office = new BackOffice_NCR(MAF, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		long accountBytes = used() - start;
+		AccountStore.Snapshot loaded = office.snapshot().join();
+		int accounts = loaded.size() - (loaded.get(0) == null ? 0 : 1), // the end of file marker
+			lowest = loaded.stream().mapToInt(Account::getAccountNum).filter(accountNum -> accountNum != 0)
+					.min().orElse(0),
+			highest = loaded.stream().mapToInt(Account::getAccountNum).max().orElse(0);
+		long measuredRangeBytes = rangeBytes(lowest, highest),
+			 rangeBytes = rangeBytes(FIRST_ACCOUNT, LAST_ACCOUNT);
+		accountBytes = Math.max(0, accountBytes - measuredRangeBytes);
+
+		start = used();
+		int transactions = office.queueTransactions(MTSF);
+		long transactionBytes = used() - start;
+
+		start = used();
+		Account[] sorted = office.snapshot().join().toArray();
+		long endOfDayBytes = used() - start;
+
+		// front end
+		start = used();
+		List<Integer> accountsList = new ArrayList<Integer>();
+		for (Account account : sorted) {
+			if (account.getAccountNum() != 0)
+				accountsList.add(account.getAccountNum());
+		}
+		long listBytes = used() - start;
+
+		start = used();
+		Map<Integer, Integer> withdrawAmounts = new HashMap<Integer, Integer>();
+		for (Account account : sorted) {
+			if (account.getAccountNum() != 0)
+				withdrawAmounts.put(account.getAccountNum(), 100000);
+		}
+		long withdrawBytes = used() - start;
+		Reference.reachabilityFence(empty);
+		Reference.reachabilityFence(office);
+		Reference.reachabilityFence(accountsList);
+		Reference.reachabilityFence(withdrawAmounts);
+
+		System.out.println("Heap footprint of " + MAF + " and " + MTSF);
+		System.out.println(String.format("%-14s %,56d bytes", "fixed", fixedBytes));
+		System.out.println(String.format("%-14s %,12d %-13s %,15d bytes, %,d bytes up to %,d", "account range",
+				highest, "highest", measuredRangeBytes, rangeBytes, LAST_ACCOUNT));
+		System.out.println(line("accounts", accounts, "accounts", accountBytes));
+		System.out.println(line("transactions", transactions, "transactions", transactionBytes)
+				+ String.format(", %.2f per summary byte", fileBytes == 0 ? 0.0 : (double) transactionBytes / fileBytes));
+		System.out.println(line("end of day", accounts, "accounts", endOfDayBytes));
+		System.out.println(line("accounts list", accountsList.size(), "accounts", listBytes));
+		System.out.println(line("withdrawals", withdrawAmounts.size(), "accounts", withdrawBytes));
+
+		if (targetAccounts < 0)
+			targetAccounts = accounts;
+		if (targetBytes < 0)
+			targetBytes = fileBytes;
+		double perAccount = accounts == 0 ? 0 : (double) accountBytes / accounts,
+			   perEndOfDay = accounts == 0 ? 0 : (double) endOfDayBytes / accounts,
+			   perByte = fileBytes == 0 ? 0 : (double) transactionBytes / fileBytes,
+			   perFrontEnd = accounts == 0 ? 0 : (double) (listBytes + withdrawBytes) / accounts;
+		double backOffice = fixedBytes + rangeBytes + targetAccounts * (perAccount + perEndOfDay)
+				+ targetBytes * perByte,
+			   frontEnd = targetAccounts * perFrontEnd;
+		System.out.println();
+		System.out.println(String.format("Projected for %,d accounts and a %,d byte summary file (%,d transactions):",
+				targetAccounts, targetBytes, fileBytes == 0 ? 0 : targetBytes * transactions / fileBytes));
+		System.out.println(projected("back office", backOffice));
+		System.out.println(projected("front end", frontEnd));
+		System.out.println("maximum heap of this JVM " + megabytes(Runtime.getRuntime().maxMemory()));
+	}
+}
@@ -0,0 +1,166 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A MasterDelta file lists the accounts that changed between two Master
+ * Accounts Files, so downstream consumers can read only the day's activity
+ * instead of the whole MAF.
+ *
+ * The Back Office writes one next to every MAF it writes, against the MAF it
+ * wrote before (or the MAF it was started from). Lines are sorted by account
+ * number:
+ *
+ * U <MAF record>		the account was created or changed, the record is
+ * 						exactly the line of the new MAF
+ * D <account number>	the account was deleted
+ *
+ * The main method applies a chain of deltas to a base MAF in one pass over
+ * the base, producing the same bytes as the full MAF written with the last
+ * delta. Blank lines are skipped, any other line that is not a record stops
+ * the merge before the merged MAF replaces an existing one.
+ */
+public class MasterDelta {
+
+	/**
+	 * @param dirty - changed account numbers, ascending
+	 * @param snapshot - accounts after the changes
+	 * @param fileName - name of the delta file
+	 * @throws IOException
+	 *
+	 * written to a temporary file that replaces the old delta when complete
+	 */
+	static void write(int[] dirty, AccountStore.Snapshot snapshot, String fileName) throws IOException {
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(fileName + ".tmp"))) {
+			for (int accountNum : dirty) {
+				Account account = snapshot.get(accountNum);
+				if (account != null)
+					out.write("U " + account + "\n");
+				else
+					out.write("D " + accountNum + "\n");
+			}
+		}
+		AccountFileWriter.replace(Paths.get(fileName + ".tmp"), Paths.get(fileName));
+	}
+
+	/**
+	 * @param base - name of the MAF the first delta was written against
+	 * @param deltas - names of the delta files, oldest first
+	 * @param fileName - name of the merged MAF
+	 * @throws IOException
+	 *
+	 * @throws NumberFormatException if a line of the base or a delta is not a
+	 * record, the message names the file and line
+	 *
+	 * the deltas are combined first, a later delta replacing what an earlier
+	 * one said about an account, then merged with the base in account order
+	 * written to a temporary file that replaces the merged MAF when complete
+	 */
+	public static void merge(String base, String[] deltas, String fileName) throws IOException {
+		// account number -> new MAF record, or null if deleted
+		TreeMap<Integer, String> changes = new TreeMap<Integer, String>();
+		for (String delta : deltas) {
+			try (BufferedReader in = new BufferedReader(new FileReader(delta))) {
+				String line;
+				for (int number = 1; (line = in.readLine()) != null; number++) {
+					if (line.trim().isEmpty())
+						continue;
+					if (line.startsWith("U "))
+						changes.put(accountNum(line.substring(2), delta, number), line.substring(2));
+					else if (line.startsWith("D "))
+						changes.put(parse(line.substring(2).trim(), line, delta, number), null);
+					else
+						throw malformed(line, delta, number);
+				}
+			}
+		}
+
+		Path temp = Paths.get(fileName + ".tmp");
+		try (BufferedReader in = new BufferedReader(new FileReader(base));
+				BufferedWriter out = Files.newBufferedWriter(temp)) {
+			String line;
+			for (int number = 1; (line = in.readLine()) != null; number++) {
+				if (line.trim().isEmpty())
+					continue;
+				int accountNum = accountNum(line, base, number);
+				Map.Entry<Integer, String> next;
+				while ((next = changes.firstEntry()) != null && next.getKey() < accountNum) {
+					changes.pollFirstEntry();
+					if (next.getValue() != null)
+						out.write(next.getValue() + "\n");
+				}
+				if (next != null && next.getKey() == accountNum) {
+					changes.pollFirstEntry();
+					if (next.getValue() != null)
+						out.write(next.getValue() + "\n");
+				} else {
+					out.write(line + "\n");
+				}
+			}
+			for (String record : changes.values()) {
+				if (record != null)
+					out.write(record + "\n");
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		AccountFileWriter.replace(temp, Paths.get(fileName));
+	}
+
+	/**
+	 * @param record - MAF record
+	 * @param file - name of the file holding it
+	 * @param number - line number of the record
+	 * @return account number of the record
+	 */
+	private static int accountNum(String record, String file, int number) {
+		int space = record.indexOf(' ');
+		if (space < 0)
+			throw malformed(record, file, number);
+		return parse(record.substring(0, space), record, file, number);
+	}
+
+	private static int parse(String accountNum, String line, String file, int number) {
+		try {
+			return Integer.parseInt(accountNum);
+		} catch (NumberFormatException e) {
+			throw malformed(line, file, number);
+		}
+	}
+
+	private static NumberFormatException malformed(String line, String file, int number) {
+		return new NumberFormatException(file + " line " + number + ": " + line);
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = base master accounts file name
+	 * args[1 .. n-2] = delta file names, oldest first
+	 * args[n-1] = name of the merged master accounts file
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		}
+		String[] deltas = new String[args.length - 2];
+		System.arraycopy(args, 1, deltas, 0, deltas.length);
+		try {
+			merge(args[0], deltas, args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid Input. " + e.getMessage());
+			System.out.println("Could not merge the delta files.");
+		} catch (IOException e) {
+			System.out.println("Could not merge the delta files.");
+		}
+	}
+}
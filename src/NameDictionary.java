@@ -0,0 +1,175 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The NameDictionary stores every distinct account holder name once and hands
+ * out an int id for it, so that accounts can keep and compare ids instead of
+ * their own String objects.
+ *
+ * Names are kept back to back as UTF-8 bytes in one growing byte array
+ * (account holder names are short ASCII, so one byte per character), the
+ * offsets array marks where every name starts and ends. Lookups go through
+ * an open addressing hash table over the name bytes.
+ *
+ * Adding names is synchronized. Reading a name back by id is not, the arrays
+ * are republished through volatile fields after a name is added so any
+ * thread holding an id sees the bytes it refers to.
+ */
+public class NameDictionary {
+
+	// dictionary shared by every Account instance
+	private static final NameDictionary SHARED = new NameDictionary();
+
+	private volatile byte[] bytes = new byte[4096];
+
+	// name with id i occupies bytes[offsets[i]] up to bytes[offsets[i + 1]]
+	private volatile int[] offsets = new int[257];
+
+	// hash table of id + 1, 0 marks an empty slot
+	private int[] table = new int[512];
+	private int count;
+
+	/**
+	 * @return the dictionary used by the Account class
+	 */
+	public static NameDictionary shared() {
+		return SHARED;
+	}
+
+	/**
+	 * @param name
+	 * @return id of the name, the name is added if it is not already known
+	 */
+	public synchronized int intern(String name) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int slot = find(key);
+		if (table[slot] != 0)
+			return table[slot] - 1;
+
+		int start = offsets[count];
+		byte[] data = bytes;
+		if (start + key.length > data.length) {
+			byte[] grown = new byte[Math.max(data.length * 2, start + key.length)];
+			System.arraycopy(data, 0, grown, 0, start);
+			data = grown;
+		}
+		System.arraycopy(key, 0, data, start, key.length);
+		bytes = data;
+
+		int[] ends = offsets;
+		if (count + 2 > ends.length) {
+			int[] grown = new int[ends.length * 2];
+			System.arraycopy(ends, 0, grown, 0, count + 1);
+			ends = grown;
+		}
+		ends[count + 1] = start + key.length;
+		int id = count++;
+		offsets = ends; // publishes the new name to readers
+
+		table[slot] = id + 1;
+		if (count * 2 > table.length)
+			rehash();
+		return id;
+	}
+
+	/**
+	 * @param name
+	 * @return id of the name, or -1 if the name is not in the dictionary
+	 */
+	public synchronized int lookup(String name) {
+		int slot = find(name.getBytes(StandardCharsets.UTF_8));
+		return table[slot] - 1;
+	}
+
+	/**
+	 * @param id
+	 * @return the name with the given id
+	 */
+	public String name(int id) {
+		int[] ends = offsets;
+		return new String(bytes, ends[id], ends[id + 1] - ends[id], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param id
+	 * @return length in bytes of the name with the given id
+	 */
+	public int length(int id) {
+		int[] ends = offsets;
+		return ends[id + 1] - ends[id];
+	}
+
+	/**
+	 * @param id
+	 * @param out - buffer the name bytes are copied into
+	 */
+	public void copyTo(int id, ByteBuffer out) {
+		int[] ends = offsets;
+		out.put(bytes, ends[id], ends[id + 1] - ends[id]);
+	}
+
+	/**
+	 * forgets every name, the ids handed out before must no longer be used
+	 *
+	 * for a Back Office that drops all of its accounts and loads them again,
+	 * the dictionary otherwise keeps every name it ever held
+	 */
+	public synchronized void clear() {
+		bytes = new byte[4096];
+		offsets = new int[257];
+		table = new int[512];
+		count = 0;
+	}
+
+	/**
+	 * @return number of distinct names stored
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @param key - name bytes
+	 * @return slot holding the name, or the empty slot it would be put in
+	 */
+	private int find(byte[] key) {
+		int mask = table.length - 1,
+			slot = hash(key, 0, key.length) & mask;
+		while (table[slot] != 0 && !matches(table[slot] - 1, key))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private boolean matches(int id, byte[] key) {
+		int start = offsets[id], end = offsets[id + 1];
+		if (end - start != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++) {
+			if (bytes[start + i] != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * doubles the hash table and puts every id back in
+	 */
+	private void rehash() {
+		int[] grown = new int[table.length * 2];
+		int mask = grown.length - 1;
+		for (int id = 0; id < count; id++) {
+			int slot = hash(bytes, offsets[id], offsets[id + 1]) & mask;
+			while (grown[slot] != 0)
+				slot = (slot + 1) & mask;
+			grown[slot] = id + 1;
+		}
+		table = grown;
+	}
+
+	private static int hash(byte[] data, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + data[i];
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,270 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A NameIndex finds accounts by a prefix of the holder name, for agents who
+ * need the exact name of an account before deleting it. It is a read only
+ * binary file the Back Office writes next to every MAF it writes (MAF.txt
+ * produces MAF.names) and Front Ends memory map.
+ *
+ * The file is a 16 byte header (magic, version, number of accounts, size of
+ * the name pool) followed by one 8 byte entry (int offset of the name in
+ * the pool, int account number) per account, sorted by name ignoring case
+ * and then by account number, followed by the name pool, where every
+ * distinct name is stored once as a length byte and its bytes. A prefix
+ * lookup is a binary search for the first entry whose name is not below
+ * the prefix and a scan over the entries that start with it, so it touches
+ * a few pages of the file however many accounts there are.
+ *
+ * The entries are sorted by giving every distinct name its rank in name
+ * order and sorting the accounts as (rank, account number) longs, only the
+ * distinct names are compared as strings.
+ *
+ * Usage:
+ * NameIndex <MAF> [index]				writes the index of a MAF
+ * NameIndex search <index> <prefix>		prints the matching accounts
+ */
+public class NameIndex {
+
+	private static final int MAGIC = 0x53424E31, // "SBN1"
+							 VERSION = 1,
+							 HEADER = 16,
+							 ENTRY = 8;
+
+	private final MappedByteBuffer map;
+	private final int count, pool;
+
+	private NameIndex(MappedByteBuffer map, int count) {
+		this.map = map;
+		this.count = count;
+		pool = HEADER + count * ENTRY;
+	}
+
+	/**
+	 * @param fileName - name of the name index
+	 * @return the index, mapped read only
+	 * @throws IOException if the file is not a name index
+	 */
+	public static NameIndex open(String fileName) throws IOException {
+		try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			if (in.size() < HEADER)
+				throw new IOException("not a name index: " + fileName);
+			MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			int count = map.getInt(8);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+					|| in.size() != HEADER + (long) count * ENTRY + map.getInt(12))
+				throw new IOException("not a name index: " + fileName);
+			return new NameIndex(map, count);
+		}
+	}
+
+	/**
+	 * @param prefix - start of the holder name, case is ignored
+	 * @param limit - most accounts returned
+	 * @return the matching accounts as "account number name", in name order
+	 */
+	public List<String> search(String prefix, int limit) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		int low = 0, high = count;
+		while (low < high) { // first entry whose name is not below the prefix
+			int mid = (low + high) >>> 1;
+			if (compare(mid, key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		List<String> found = new ArrayList<String>();
+		for (int i = low; i < count && found.size() < limit && startsWith(i, key); i++)
+			found.add(map.getInt(HEADER + i * ENTRY + 4) + " " + name(i));
+		return found;
+	}
+
+	/**
+	 * @return number of accounts in the index
+	 */
+	public int size() {
+		return count;
+	}
+
+	private String name(int entry) {
+		int at = pool + map.getInt(HEADER + entry * ENTRY);
+		byte[] name = new byte[map.get(at) & 0xFF];
+		map.get(at + 1, name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the name of the entry compared to the key, ignoring case, over
+	 * the length of the key
+	 */
+	private int compare(int entry, byte[] key) {
+		int at = pool + map.getInt(HEADER + entry * ENTRY),
+			length = map.get(at) & 0xFF;
+		for (int i = 0; i < key.length; i++) {
+			if (i == length)
+				return -1;
+			int difference = lower(map.get(at + 1 + i)) - lower(key[i]);
+			if (difference != 0)
+				return difference;
+		}
+		return 0;
+	}
+
+	private boolean startsWith(int entry, byte[] key) {
+		return compare(entry, key) == 0;
+	}
+
+	private static int lower(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+	}
+
+	private static String fold(String name) {
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			if (chars[i] >= 'A' && chars[i] <= 'Z')
+				chars[i] += 'a' - 'A';
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @param sorted - accounts in ascending account number order
+	 * @param fileName - name of the name index
+	 * @throws IOException
+	 *
+	 * written to a temporary file that is moved over the old index when
+	 * complete, Front Ends that mapped the old one keep reading it
+	 */
+	public static void write(Account[] sorted, String fileName) throws IOException {
+		NameDictionary names = NameDictionary.shared();
+
+		// rank every distinct name in name order, and find its place in the pool,
+		// skipping the end of file marker
+		int[] used = Arrays.stream(sorted).filter(account -> account.getAccountNum() >= 10000000)
+				.mapToInt(Account::getNameId).sorted().distinct().toArray();
+		String[] keys = new String[used.length],
+				 folded = new String[used.length]; // ASCII lower case, as search compares
+		for (int i = 0; i < used.length; i++) {
+			if (names.length(used[i]) > 255)
+				throw new IOException("name too long: " + names.name(used[i]));
+			keys[i] = names.name(used[i]);
+			folded[i] = fold(keys[i]);
+		}
+		Integer[] order = new Integer[used.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Comparator<Integer> byName = Comparator.comparing(i -> folded[i]);
+		Arrays.parallelSort(order, byName.thenComparing(i -> keys[i]));
+		// rank and pool offset by place in used, sized by the names of this
+		// MAF rather than every name the shared dictionary ever held
+		int[] rank = new int[used.length],
+			  offset = new int[used.length];
+		int poolSize = 0;
+		for (int i = 0; i < order.length; i++) {
+			rank[order[i]] = i;
+			offset[order[i]] = poolSize;
+			poolSize += 1 + names.length(used[order[i]]);
+		}
+
+		long[] entries = Arrays.stream(sorted).filter(account -> account.getAccountNum() >= 10000000)
+				.mapToLong(account -> (long) rank[Arrays.binarySearch(used, account.getNameId())] << 32
+						| account.getAccountNum())
+				.toArray();
+		Arrays.parallelSort(entries);
+
+		Path target = Paths.get(fileName),
+			 temp = Paths.get(fileName + ".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(entries.length).putInt(poolSize);
+			for (long entry : entries) {
+				if (buffer.remaining() < ENTRY)
+					drain(out, buffer);
+				buffer.putInt(offset[order[(int) (entry >>> 32)]]).putInt((int) entry);
+			}
+			for (int i = 0; i < order.length; i++) {
+				int id = used[order[i]];
+				if (buffer.remaining() < 1 + names.length(id))
+					drain(out, buffer);
+				buffer.put((byte) names.length(id));
+				names.copyTo(id, buffer);
+			}
+			drain(out, buffer);
+		}
+		AccountFileWriter.replace(temp, target);
+	}
+
+	private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @param MAF - name of a master accounts file
+	 * @param fileName - name of the name index
+	 * @throws IOException if the MAF can not be read or is not a MAF
+	 */
+	public static void write(String MAF, String fileName) throws IOException {
+		List<Account> accounts = new ArrayList<Account>();
+		try (BufferedReader br = new BufferedReader(new FileReader(MAF))) {
+			String cur;
+			while ((cur = br.readLine()) != null) {
+				String[] line = cur.split(" ", 3);
+				accounts.add(new Account(Integer.parseInt(line[0]), Integer.parseInt(line[1]), line[2]));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("not a master accounts file: " + MAF);
+		}
+		write(accounts.toArray(new Account[0]), fileName);
+	}
+
+	/**
+	 * @param MAFName - name of the master accounts file
+	 * @return name of its name index, MAF.txt produces MAF.names
+	 */
+	public static String indexFileName(String MAFName) {
+		if (MAFName.endsWith(".txt"))
+			MAFName = MAFName.substring(0, MAFName.length() - 4);
+		return MAFName + ".names";
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file name, or search
+	 * args[1] = name of the name index, MAF.names if not given, or for
+	 * search the name of the index to search
+	 * args[2] = for search, the start of the holder name
+	 */
+	public static void main(String[] args) {
+		try {
+			if (args[0].equals("search")) {
+				for (String account : open(args[1]).search(args[2], Integer.MAX_VALUE))
+					System.out.println(account);
+			} else {
+				write(args[0], args.length > 1 ? args[1] : indexFileName(args[0]));
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not use the name index: " + e.getMessage());
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The PartitionedBackOffice runs the Back Office as several local processes,
+ * each one owning a range of account numbers.
+ *
+ * The coordinator process starts the partitions, reads the merged transaction
+ * summary file and routes every transaction to the partition owning its
+ * account. A transfer between two partitions uses two phase commit: both
+ * partitions are asked to prepare their side (the money is moved right away
+ * and an undo is remembered), then both are told to commit, or the prepared
+ * side is told to abort and undo. On ES every partition writes its own
+ * section of the accounts file and the master accounts file, and the
+ * coordinator joins the sections in account number order.
+ *
+ * The coordinator then writes the hash trees, balance snapshot and name
+ * index of the joined files. No end of day report, master delta, journal or
+ * velocity alerts are written in partitioned mode, the ones an earlier run
+ * left next to the MAF are deleted so none of them describes another MAF.
+ *
+ * Coordinator and partitions talk over loopback sockets, one request line and
+ * one reply line at a time:
+ *
+ * TX <transaction>					apply a transaction local to the partition
+ * PREPARE <id> DEBIT|CREDIT <acct> <amount>	YES or NO
+ * COMMIT <id> / ABORT <id>			finish a prepared transfer
+ * WRITE <accounts section> <MAF section>	write the partition's sections
+ * QUIT								exit
+ *
+ * Usage: PartitionedBackOffice <MAF> <MTSF> <accounts out> <MAF out> <partitions>
+ */
+public class PartitionedBackOffice {
+
+	private static final int ACCOUNT_SPACE = 100000000; // 8 digit account numbers
+
+	private final Connection[] partitions;
+	private final Process[] processes;
+	private final int span;
+	private long nextTransfer = 1;
+
+	/**
+	 * @param MAF - name of the master accounts file
+	 * @param count - number of partitions
+	 * @throws IOException
+	 *
+	 * starts the partition processes and waits for all of them to connect
+	 */
+	public PartitionedBackOffice(String MAF, int count) throws IOException {
+		partitions = new Connection[count];
+		processes = new Process[count];
+		span = (ACCOUNT_SPACE + count - 1) / count;
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		try (ServerSocket server = new ServerSocket(0, count, InetAddress.getLoopbackAddress())) {
+			for (int i = 0; i < count; i++) {
+				int low = i == 0 ? Integer.MIN_VALUE : i * span,
+					high = i == count - 1 ? Integer.MAX_VALUE : (i + 1) * span - 1;
+				processes[i] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						"PartitionedBackOffice", "-partition", "" + server.getLocalPort(), "" + i,
+						"" + low, "" + high, MAF).inheritIO().start();
+			}
+			for (int i = 0; i < count; i++) {
+				Connection connection = new Connection(server.accept());
+				String hello = connection.in.readLine();
+				partitions[Integer.parseInt(hello.split(" ")[1])] = connection;
+			}
+		}
+	}
+
+	/**
+	 * @param transactionFile - name of the merged transaction summary file
+	 * @param accountsFileName - output name of the accounts file
+	 * @param MAFName - output name of the master accounts file
+	 * @throws IOException
+	 *
+	 * routes every transaction to its partition, stops after the first ES
+	 * like the single process back office does, a binary summary (see
+	 * BinarySummary) is read as its records
+	 */
+	public void process(String transactionFile, String accountsFileName, String MAFName) throws IOException {
+		TransactionQueue records = BinarySummary.isBinary(transactionFile) ? BinarySummary.records(transactionFile) : null;
+		try (BufferedReader br = records == null ? new BufferedReader(new FileReader(transactionFile)) : null) {
+			String line;
+			while ((line = records == null ? br.readLine() : records.poll()) != null) {
+				String[] args = line.split(" ", 5);
+				if (!BackOffice_NCR.isValidTransaction(args))
+					fatal();
+				int aNum1 = Integer.parseInt(args[1]),
+					aNum2 = Integer.parseInt(args[2]),
+					money = Integer.parseInt(args[3]);
+
+				switch (args[0]) {
+				case "CR":
+				case "DL":
+				case "DE":
+				case "WD":
+					owner(aNum1).call("TX " + line);
+					break;
+				case "TR":
+					if (owner(aNum1) == owner(aNum2))
+						owner(aNum1).call("TX " + line);
+					else
+						transfer(aNum1, aNum2, money);
+					break;
+				case "ES":
+					endSession(accountsFileName, MAFName);
+					return;
+				default:
+					fatal();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param fromAccount
+	 * @param toAccount
+	 * @param value
+	 * @throws IOException
+	 *
+	 * transfer between two partitions, committed only if both sides prepared
+	 */
+	private void transfer(int fromAccount, int toAccount, int value) throws IOException {
+		long id = nextTransfer++;
+		Connection from = owner(fromAccount),
+				   to = owner(toAccount);
+		boolean debit = from.call("PREPARE " + id + " DEBIT " + fromAccount + " " + value).equals("YES"),
+				credit = debit && to.call("PREPARE " + id + " CREDIT " + toAccount + " " + value).equals("YES");
+		if (debit && credit) {
+			from.call("COMMIT " + id);
+			to.call("COMMIT " + id);
+		} else if (debit) {
+			from.call("ABORT " + id);
+		}
+	}
+
+	/**
+	 * @param accountsFileName
+	 * @param MAFName
+	 * @throws IOException
+	 *
+	 * has every partition write its sections and joins them into the final files
+	 */
+	private void endSession(String accountsFileName, String MAFName) throws IOException {
+		String accountsFile = BackOffice_NCR.fixFileName(accountsFileName),
+			   MAF = BackOffice_NCR.fixFileName(MAFName);
+		String[] accountsSections = new String[partitions.length],
+				 MAFSections = new String[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			accountsSections[i] = accountsFile + ".part" + i;
+			MAFSections[i] = MAF + ".part" + i;
+			partitions[i].call("WRITE " + accountsSections[i] + " " + MAFSections[i]);
+		}
+		AccountFileWriter.concatenate(accountsSections, true, accountsFile);
+		AccountFileWriter.concatenate(MAFSections, false, MAF);
+		AccountHashTree.build(accountsFile).write(AccountHashTree.treeFileName(accountsFile));
+		AccountHashTree.build(MAF).write(AccountHashTree.treeFileName(MAF));
+		BalanceSnapshot.write(MAF, BalanceSnapshot.snapshotFileName(MAF));
+		NameIndex.write(MAF, NameIndex.indexFileName(MAF));
+		for (String stale : new String[] { BackOffice_NCR.reportFileName(MAF), BackOffice_NCR.deltaFileName(MAF),
+				BackOffice_NCR.journalFileName(MAF), BackOffice_NCR.alertsFileName(MAF),
+				BackOffice_NCR.checkpointFileName(MAF) })
+			new File(stale).delete(); // written by the single process back office only
+		for (int i = 0; i < partitions.length; i++) {
+			new File(accountsSections[i]).delete();
+			new File(MAFSections[i]).delete();
+		}
+		System.out.println("END OF SESSION");
+	}
+
+	/**
+	 * tells every partition to exit and waits for them
+	 */
+	public void shutdown() {
+		for (int i = 0; i < partitions.length; i++) {
+			try {
+				partitions[i].call("QUIT");
+				processes[i].waitFor();
+			} catch (IOException | InterruptedException e) {
+				processes[i].destroy();
+			}
+		}
+	}
+
+	private Connection owner(int accountNum) {
+		return partitions[Math.max(0, Math.min(partitions.length - 1, accountNum / span))];
+	}
+
+	private void fatal() {
+		System.err.println("Fatal Error. Program Exiting.");
+		for (Process process : processes)
+			process.destroy();
+		System.exit(0);
+	}
+
+	/**
+	 * one request/reply connection to a partition
+	 */
+	private class Connection {
+		private final BufferedReader in;
+		private final PrintWriter out;
+
+		private Connection(Socket socket) throws IOException {
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		private String call(String request) throws IOException {
+			out.write(request + "\n");
+			out.flush();
+			String reply = in.readLine();
+			if (reply == null)
+				fatal(); // the partition died
+			return reply;
+		}
+	}
+
+//----------------------------PARTITION--------------------------
+
+	/**
+	 * @param port - coordinator port
+	 * @param index - number of this partition
+	 * @param office - back office holding the owned accounts
+	 * @throws IOException
+	 *
+	 * serves the coordinator's requests until told to quit
+	 */
+	private static void servePartition(int port, int index, BackOffice_NCR office) throws IOException {
+		// prepared transfers, id -> "DEBIT acct amount" or "CREDIT acct amount"
+		Map<String, String[]> prepared = new HashMap<String, String[]>();
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			out.write("HELLO " + index + "\n");
+			out.flush();
+
+			String request;
+			while ((request = in.readLine()) != null) {
+				String[] args = request.split(" ");
+				String reply = "OK";
+				switch (args[0]) {
+				case "TX":
+					office.applyTransaction(request.substring(3), null, null);
+					break;
+				case "PREPARE":
+					int accountNum = Integer.parseInt(args[3]),
+						value = Integer.parseInt(args[4]);
+					boolean ready = args[2].equals("DEBIT") ? office.prepareDebit(accountNum, value)
+							: office.prepareCredit(accountNum, value);
+					if (ready)
+						prepared.put(args[1], args);
+					reply = ready ? "YES" : "NO";
+					break;
+				case "COMMIT":
+					String[] committed = prepared.remove(args[1]);
+					if (committed[2].equals("DEBIT"))
+						office.transferCommitted(Integer.parseInt(committed[4]));
+					break;
+				case "ABORT":
+					String[] aborted = prepared.remove(args[1]);
+					if (aborted[2].equals("DEBIT"))
+						office.undoDebit(Integer.parseInt(aborted[3]), Integer.parseInt(aborted[4]));
+					else
+						office.undoCredit(Integer.parseInt(aborted[3]), Integer.parseInt(aborted[4]));
+					break;
+				case "WRITE":
+					office.writeSections(args[1], args[2]);
+					break;
+				case "QUIT":
+					out.write(reply + "\n");
+					out.flush();
+					return;
+				}
+				out.write(reply + "\n");
+				out.flush();
+			}
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file name
+	 * args[1] = Merged Transaction Summary File name
+	 * args[2] = name of outputted accounts file
+	 * args[3] = name of outputted Master Accounts File
+	 * args[4] = number of partitions
+	 *
+	 * started with -partition <port> <index> <low> <high> <MAF> by the
+	 * coordinator to run one partition
+	 */
+	public static void main(String[] args) {
+		try {
+			if (args[0].equals("-partition")) {
+				servePartition(Integer.parseInt(args[1]), Integer.parseInt(args[2]), new BackOffice_NCR(args[5],
+						Integer.parseInt(args[3]), Integer.parseInt(args[4])));
+				return;
+			}
+			PartitionedBackOffice office = new PartitionedBackOffice(args[0], Integer.parseInt(args[4]));
+			office.process(args[1], args[2], args[3]);
+			office.shutdown();
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not run the partitioned back office.");
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * The ReplayHarness runs a Master Accounts File and a Merged Transaction
+ * Summary File through the Back Office and checks the run against a golden
+ * run of the same files, so a change to the Back Office can be shown to
+ * produce exactly the same output and not to be slower.
+ *
+ * The Back Office runs in its own JVM (BackOffice_NCR -run), so a fatal
+ * error in the summary file can not end the harness and the failed
+ * constraint log can be captured exactly as the Back Office writes it to
+ * standard error. Every run writes into a fresh temporary directory, the
+ * best of several runs is taken as the throughput.
+ *
+ * The throughput is timed by the Back Office itself: the run is recorded
+ * with the flight recorder and only the time of its ApplyBatch events (see
+ * SimBankEvents) counts, so the start of the JVM, the loading of the MAF and
+ * the writing of the output files do not hide a slower apply.
+ *
+ * A golden directory holds:
+ *
+ * accounts.txt		valid accounts file of the golden run
+ * MAF.txt			master accounts file of the golden run
+ * log.txt			failed constraint log (standard error) of the golden run
+ * baseline.txt		transactions per second of the golden run
+ * history.txt		date, transactions per second and verdict of every check
+ *
+ * Usage:
+ * ReplayHarness record <MAF> <MTSF> <golden dir> [runs]
+ * ReplayHarness check <MAF> <MTSF> <golden dir> [runs] [allowed slowdown in %]
+ *
+ * check exits with status 1 if an output differs or the throughput is more
+ * than the allowed slowdown (10% by default) below the baseline.
+ */
+public class ReplayHarness {
+
+	private static final String ACCOUNTS = "accounts.txt",
+								MAF = "MAF.txt",
+								LOG = "log.txt",
+								BASELINE = "baseline.txt",
+								HISTORY = "history.txt";
+
+	/**
+	 * outputs and timing of one run, nanos is the time spent applying
+	 * transactions
+	 */
+	private static class Run {
+		private final Path dir;
+		private final long nanos;
+
+		private Run(Path dir, long nanos) {
+			this.dir = dir;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * @param MAF
+	 * @param MTSF
+	 * @return the run, its outputs are in a new temporary directory
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static Run run(String MAF, String MTSF) throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("replay");
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Path recording = dir.resolve("run.jfr");
+		ProcessBuilder builder = new ProcessBuilder(java, "-XX:StartFlightRecording=filename=" + recording,
+				"-cp", System.getProperty("java.class.path"), "BackOffice_NCR", "-run", new File(MAF).getAbsolutePath(), new File(MTSF).getAbsolutePath(),
+				dir.resolve(ACCOUNTS).toString(), dir.resolve(ReplayHarness.MAF).toString());
+		builder.redirectOutput(dir.resolve("stdout.txt").toFile());
+		builder.redirectError(dir.resolve(LOG).toFile());
+		int status = builder.start().waitFor();
+		if (status != 0)
+			throw new IOException("back office exited with status " + status + ", see " + dir);
+		long nanos = applyNanos(recording);
+		Files.delete(recording);
+		return new Run(dir, nanos);
+	}
+
+	/**
+	 * @param recording - flight recording of a Back Office run
+	 * @return total duration of the run's ApplyBatch events
+	 * @throws IOException if the recording holds none
+	 */
+	private static long applyNanos(Path recording) throws IOException {
+		long nanos = 0;
+		boolean found = false;
+		for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+			if (event.getEventType().getName().equals("simbank.ApplyBatch")) {
+				nanos += event.getDuration().toNanos();
+				found = true;
+			}
+		}
+		if (!found)
+			throw new IOException("no transactions were applied, see " + recording.getParent());
+		return Math.max(nanos, 1);
+	}
+
+	/**
+	 * @param MAF
+	 * @param MTSF
+	 * @param runs - number of runs, the fastest is kept
+	 * @return the fastest run, the directories of the others are removed
+	 */
+	private static Run bestOf(String MAF, String MTSF, int runs) throws IOException, InterruptedException {
+		Run best = null;
+		for (int i = 0; i < runs; i++) {
+			Run run = run(MAF, MTSF);
+			if (best == null || run.nanos < best.nanos) {
+				if (best != null)
+					delete(best.dir);
+				best = run;
+			} else {
+				delete(run.dir);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param MTSF
+	 * @return number of transactions in the summary file, text or binary
+	 */
+	private static long transactions(String MTSF) throws IOException {
+		if (BinarySummary.isBinary(MTSF))
+			return BinarySummary.read(MTSF).size();
+		try (Stream<String> lines = Files.lines(Paths.get(MTSF), StandardCharsets.UTF_8)) {
+			return lines.count();
+		}
+	}
+
+	private static double throughput(long transactions, Run run) {
+		return transactions * 1e9 / run.nanos;
+	}
+
+	/**
+	 * @param MAF
+	 * @param MTSF
+	 * @param golden - golden directory, created if needed
+	 * @param runs
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *
+	 * runs the files and stores the outputs and throughput as the golden run
+	 */
+	public static void record(String MAF, String MTSF, String golden, int runs) throws IOException, InterruptedException {
+		Path dir = Paths.get(golden);
+		Files.createDirectories(dir);
+		Run run = bestOf(MAF, MTSF, runs);
+		for (String output : new String[] { ACCOUNTS, ReplayHarness.MAF, LOG })
+			Files.copy(run.dir.resolve(output), dir.resolve(output), StandardCopyOption.REPLACE_EXISTING);
+		delete(run.dir);
+		double throughput = throughput(transactions(MTSF), run);
+		Files.write(dir.resolve(BASELINE), String.format("%.0f%n", throughput).getBytes(StandardCharsets.UTF_8));
+		System.out.println(String.format("RECORDED %.0f transactions/s", throughput));
+	}
+
+	/**
+	 * @param MAF
+	 * @param MTSF
+	 * @param golden - golden directory written by record
+	 * @param runs
+	 * @param slowdown - allowed throughput drop below the baseline, in percent
+	 * @return true if the outputs are identical and the throughput is high enough
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *
+	 * the outputs of a failed check are kept for inspection
+	 */
+	public static boolean check(String MAF, String MTSF, String golden, int runs, double slowdown)
+			throws IOException, InterruptedException {
+		Path dir = Paths.get(golden);
+		double baseline = Double.parseDouble(new String(Files.readAllBytes(dir.resolve(BASELINE)),
+				StandardCharsets.UTF_8).trim());
+		Run run = bestOf(MAF, MTSF, runs);
+
+		List<String> failures = new ArrayList<String>();
+		for (String output : new String[] { ACCOUNTS, ReplayHarness.MAF, LOG }) {
+			long mismatch = Files.mismatch(dir.resolve(output), run.dir.resolve(output));
+			if (mismatch >= 0)
+				failures.add(output + " differs from byte " + mismatch);
+		}
+		double throughput = throughput(transactions(MTSF), run);
+		if (throughput < baseline * (1 - slowdown / 100))
+			failures.add(String.format("throughput %.0f transactions/s is more than %.0f%% below the baseline %.0f",
+					throughput, slowdown, baseline));
+
+		try (PrintWriter history = new PrintWriter(new FileWriter(dir.resolve(HISTORY).toFile(), true))) {
+			history.write(String.format("%s %.0f %s%n", LocalDateTime.now(), throughput,
+					failures.isEmpty() ? "PASS" : "FAIL"));
+		}
+		System.out.println(String.format("%.0f transactions/s, baseline %.0f", throughput, baseline));
+		if (failures.isEmpty()) {
+			delete(run.dir);
+			System.out.println("PASS");
+			return true;
+		}
+		for (String failure : failures)
+			System.out.println("FAIL " + failure);
+		System.out.println("outputs kept in " + run.dir);
+		return false;
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(file);
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = record or check
+	 * args[1] = master accounts file name
+	 * args[2] = Merged Transaction Summary File name
+	 * args[3] = golden directory
+	 * args[4] = number of runs, the fastest counts, 3 if not given
+	 * args[5] = allowed slowdown in percent for check, 10 if not given
+	 */
+	public static void main(String[] args) {
+		boolean passed = true;
+		try {
+			int runs = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+			double slowdown = args.length > 5 ? Double.parseDouble(args[5]) : 10;
+			if (runs < 1)
+				throw new NumberFormatException();
+			switch (args[0]) {
+			case "record":
+				record(args[1], args[2], args[3], runs);
+				break;
+			case "check":
+				passed = check(args[1], args[2], args[3], runs, slowdown);
+				break;
+			default:
+				throw new ArrayIndexOutOfBoundsException();
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			System.out.println("Invalid arguments.");
+			passed = false;
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Replay failed: " + e.getMessage());
+			passed = false;
+		}
+		System.exit(passed ? 0 : 1);
+	}
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * A ReservationTable lets the Front Ends running on one machine agree on
+ * which terminal creates or deletes an account number today, so two agents
+ * can not both create (or both delete) the same account and have the Back
+ * Office reject one of them at night.
+ *
+ * The table is a file every Front End memory maps read/write. It is a 32
+ * byte header (magic, version, number of slots, day of the table, sessions
+ * started that day), a bitmap with one bit per chunk of CHUNK slots that
+ * holds claims, a bitmap of the sessions of the day that ended, and one 4
+ * byte slot per account number of the 8 digit range, so the table can never
+ * fill up. A slot holds the kind of claim and the token of the session that
+ * made it, 0 when free. A claim is a single compare and set of a free slot,
+ * so claims are resolved in the shared pages of the page cache without
+ * locks or a central service, and the first session to claim a number wins.
+ * The file is sparse, only the pages of claimed numbers take disk space and
+ * memory, and clearing or listing the claims only reads the chunks the
+ * chunk bitmap marks.
+ *
+ * Every Front End session takes a new token at login, so a claim belongs to
+ * the session whose summary file holds the transaction, a restarted terminal
+ * or a reused process id never passes for another one. A token is the day
+ * the session started and its number among the sessions of that day, and a
+ * session marks itself ended at logout, once its summary file is written.
+ *
+ * The file is created (under a file lock) by the first Front End that opens
+ * it. The first session of a new day clears, under the same lock, the claims
+ * of the sessions the Back Office has the summary files of: the sessions of
+ * the day before that ended, and every session started before that, which
+ * is taken to have stopped without logging out. The claims of a session
+ * still running over midnight are kept until the day after. Operations can
+ * also clear every claim with clear.
+ *
+ * Usage:
+ * ReservationTable list <file>
+ * ReservationTable clear <file>
+ */
+public class ReservationTable {
+
+	private static final int MAGIC = 0x53425233, // "SBR3"
+							 VERSION = 3,
+							 HEADER = 32,
+							 SLOT = 4,
+							 DAY = 12,
+							 SESSIONS = 16;
+
+	// account numbers a table has a slot for
+	private static final int FIRST_ACCOUNT = 10000000,
+							 LAST_ACCOUNT = 99999999,
+							 SLOTS = LAST_ACCOUNT - FIRST_ACCOUNT + 1;
+
+	// slots per bit of the chunk bitmap, one 4KB page of slots
+	private static final int CHUNK = 1024,
+							 CHUNKS = (SLOTS + CHUNK - 1) / CHUNK;
+
+	// a token is the day the session started, modulo 256, and its number
+	// among the sessions of that day
+	private static final int SESSION_BITS = 22,
+							 MAX_SESSIONS = 1 << SESSION_BITS;
+
+	// offsets of the chunk bitmap, the ended sessions bitmap and the slots,
+	// which start on a page of their own
+	private static final int CHUNK_MAP = HEADER,
+							 ENDED_MAP = CHUNK_MAP + (CHUNKS + 31) / 32 * 4,
+							 TABLE = (ENDED_MAP + MAX_SESSIONS / 8 + 4095) & ~4095;
+
+	// kinds of claim
+	public static final int CREATE = 1,
+							DELETE = 2;
+
+	// 4 byte views of the mapped file, compare and set works on direct buffers
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private int token;
+
+	private ReservationTable(FileChannel channel, MappedByteBuffer map) {
+		this.channel = channel;
+		this.map = map;
+	}
+
+	/**
+	 * @param fileName - name of the reservation table, created if needed
+	 * @return the table, mapped read/write, call startSession before claiming
+	 * @throws IOException if the file is not a reservation table
+	 */
+	public static ReservationTable open(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			FileLock lock = channel.lock();
+			try {
+				if (channel.size() == 0) {
+					ByteBuffer header = ByteBuffer.allocate(HEADER);
+					header.putInt(MAGIC).putInt(VERSION).putInt(SLOTS).putInt(today()).putInt(1).flip();
+					channel.write(header, 0);
+					channel.write(ByteBuffer.allocate(1), TABLE + (long) SLOTS * SLOT - 1);
+				}
+			} finally {
+				lock.release();
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != SLOTS
+					|| channel.size() != TABLE + (long) SLOTS * SLOT)
+				throw new IOException("not a reservation table: " + fileName);
+			return new ReservationTable(channel, map);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @throws IOException if the day already had MAX_SESSIONS sessions
+	 *
+	 * starts a new session with a token of its own, claims of the sessions
+	 * before stay theirs, the first session of a new day clears the claims
+	 * of the sessions before it that are done first
+	 * runs under the file lock, so a token is never made of one day and the
+	 * session number of another
+	 */
+	public void startSession() throws IOException {
+		int today = today();
+		FileLock lock = channel.lock();
+		try {
+			if ((int) INTS.getVolatile(map, DAY) != today) {
+				clearClaims(false);
+				INTS.setVolatile(map, SESSIONS, 1);
+				INTS.setVolatile(map, DAY, today);
+			}
+			int session = (int) INTS.getAndAdd(map, SESSIONS, 1);
+			if (session >= MAX_SESSIONS)
+				throw new IOException("too many sessions today");
+			token = (today & 0xFF) << SESSION_BITS | session;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *
+	 * marks the session ended, its claims are cleared with the next day's
+	 * first session, call it once the session's summary file is written
+	 * a session started the day before is cleared with the next day anyway,
+	 * runs under the file lock so it never marks a session of the next day
+	 */
+	public void endSession() throws IOException {
+		FileLock lock = channel.lock();
+		try {
+			if (token >>> SESSION_BITS == ((int) INTS.getVolatile(map, DAY) & 0xFF)) {
+				int session = token & (MAX_SESSIONS - 1);
+				INTS.getAndBitwiseOr(map, ENDED_MAP + session / 32 * 4, 1 << (session & 31));
+			}
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * @param accountNum
+	 * @param kind - CREATE or DELETE
+	 * @return false if another session claimed the account number and it was
+	 * not cleared since, or the number is not an account number, true if this
+	 * session holds the claim, also when it already did
+	 */
+	public boolean claim(int accountNum, int kind) {
+		if (accountNum < FIRST_ACCOUNT || accountNum > LAST_ACCOUNT)
+			return false;
+		int offset = offset(accountNum),
+			mine = (kind << 30) | token;
+		if (INTS.compareAndSet(map, offset, 0, mine)) {
+			int chunk = (accountNum - FIRST_ACCOUNT) / CHUNK; // marked after the claim, see clearClaims
+			INTS.getAndBitwiseOr(map, CHUNK_MAP + chunk / 32 * 4, 1 << (chunk & 31));
+			return true;
+		}
+		return owner((int) INTS.getVolatile(map, offset)) == token;
+	}
+
+	/**
+	 * @param accountNum
+	 * @return the claim on the account number as "kind token", or null if it
+	 * is not claimed
+	 */
+	public String claimOf(int accountNum) {
+		if (accountNum < FIRST_ACCOUNT || accountNum > LAST_ACCOUNT)
+			return null;
+		int current = (int) INTS.getVolatile(map, offset(accountNum));
+		return current == 0 ? null : describe(current);
+	}
+
+	/**
+	 * @param all - true to free every claim, false to free the claims of the
+	 * sessions that are done when the day changes to today
+	 *
+	 * only reads the chunks the chunk bitmap marks, a chunk's bit is cleared
+	 * before its slots are read and set again if a claim is left, so a claim
+	 * made meanwhile, which marks its chunk after the compare and set, always
+	 * stays marked; the slots never claimed are not written so the file stays
+	 * sparse, called under the file lock
+	 */
+	private void clearClaims(boolean all) {
+		int day = (int) INTS.getVolatile(map, DAY),
+			sessions = Math.min(MAX_SESSIONS, (int) INTS.getVolatile(map, SESSIONS));
+		boolean nextDay = today() == day + 1;
+		for (int word = 0; word * 32 < CHUNKS; word++) {
+			int marks = (int) INTS.getVolatile(map, CHUNK_MAP + word * 4);
+			for (; marks != 0; marks &= marks - 1) {
+				int bit = marks & -marks,
+					chunk = word * 32 + Integer.numberOfTrailingZeros(bit);
+				INTS.getAndBitwiseAnd(map, CHUNK_MAP + word * 4, ~bit);
+				boolean kept = false;
+				for (int i = chunk * CHUNK; i < Math.min(SLOTS, (chunk + 1) * CHUNK); i++) {
+					int current = (int) INTS.getVolatile(map, TABLE + i * SLOT);
+					if (current == 0)
+						continue;
+					if (all || done(owner(current), day, nextDay))
+						INTS.compareAndSet(map, TABLE + i * SLOT, current, 0);
+					else
+						kept = true;
+				}
+				if (kept)
+					INTS.getAndBitwiseOr(map, CHUNK_MAP + word * 4, bit);
+			}
+		}
+		for (int word = 0; word * 32 < sessions; word++)
+			INTS.setVolatile(map, ENDED_MAP + word * 4, 0);
+		map.force();
+	}
+
+	/**
+	 * @param owner - token of a claim
+	 * @param day - day of the table
+	 * @param nextDay - true if today is the day after it
+	 * @return false only for a session of the table's day that did not end
+	 * yet and can still be running today
+	 */
+	private boolean done(int owner, int day, boolean nextDay) {
+		if (!nextDay || owner >>> SESSION_BITS != (day & 0xFF))
+			return true;
+		int session = owner & (MAX_SESSIONS - 1);
+		return ((int) INTS.getVolatile(map, ENDED_MAP + session / 32 * 4) & 1 << (session & 31)) != 0;
+	}
+
+	private static int offset(int accountNum) {
+		return TABLE + (accountNum - FIRST_ACCOUNT) * SLOT;
+	}
+
+	private static int owner(int slot) {
+		return slot & 0x3FFFFFFF;
+	}
+
+	private static String describe(int slot) {
+		return (slot >>> 30) == CREATE ? "CR " + owner(slot) : "DL " + owner(slot);
+	}
+
+	private static int today() {
+		return (int) LocalDate.now().toEpochDay();
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = list, prints every claim as "account kind token", or clear,
+	 * frees every slot
+	 * args[1] = name of the reservation table
+	 */
+	public static void main(String[] args) {
+		try {
+			ReservationTable table = open(args[1]);
+			switch (args[0]) {
+			case "list":
+				for (int chunk = 0; chunk < CHUNKS; chunk++) {
+					if ((table.map.getInt(CHUNK_MAP + chunk / 32 * 4) & 1 << (chunk & 31)) == 0)
+						continue;
+					for (int i = chunk * CHUNK; i < Math.min(SLOTS, (chunk + 1) * CHUNK); i++) {
+						int current = table.map.getInt(TABLE + i * SLOT);
+						if (current != 0)
+							System.out.println((FIRST_ACCOUNT + i) + " " + describe(current));
+					}
+				}
+				break;
+			case "clear":
+				FileLock lock = table.channel.lock();
+				try {
+					table.clearClaims(true);
+				} finally {
+					lock.release();
+				}
+				break;
+			default:
+				System.out.println("Invalid arguments.");
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid arguments.");
+		} catch (IOException e) {
+			System.out.println("Could not open the reservation table.");
+		}
+	}
+}
@@ -0,0 +1,166 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the phases of SimBank, so a standard
+ * recording (java -XX:StartFlightRecording ...) shows where a Back Office or
+ * Front End run spends its time.
+ *
+ * The events are enabled by default when a recording is running. When no
+ * recording is running, begin() and commit() are no-ops the JIT removes, and
+ * the Back Office does not count transactions for ApplyBatch at all.
+ */
+public class SimBankEvents {
+
+	private SimBankEvents() {
+	}
+
+	@Name("simbank.MAFLoad")
+	@Label("MAF Load")
+	@Category({ "SimBank", "Back Office" })
+	@Description("Master accounts file read into the account store")
+	static class MAFLoad extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Accounts")
+		int accounts;
+	}
+
+	@Name("simbank.MTSFRead")
+	@Label("MTSF Read")
+	@Category({ "SimBank", "Back Office" })
+	@Description("Merged transaction summary file read into the transaction queue")
+	static class MTSFRead extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Offset")
+		@DataAmount
+		long offset;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Lines")
+		int lines;
+	}
+
+	@Name("simbank.ApplyBatch")
+	@Label("Apply Batch")
+	@Category({ "SimBank", "Back Office" })
+	@Description("Validation and application of a batch of transactions")
+	static class ApplyBatch extends Event {
+		@Label("Transactions")
+		int transactions;
+
+		@Label("Failed")
+		int failed;
+
+		@Label("CR")
+		int create;
+
+		@Label("DL")
+		int delete;
+
+		@Label("DE")
+		int deposit;
+
+		@Label("WD")
+		int withdraw;
+
+		@Label("TR")
+		int transfer;
+
+		@Label("ES")
+		int endSession;
+
+		/**
+		 * @param cmd - transaction code
+		 * @param success - false if a business constraint rejected it
+		 */
+		void count(String cmd, boolean success) {
+			transactions++;
+			if (!success)
+				failed++;
+			switch (cmd) {
+			case "CR":
+				create++;
+				break;
+			case "DL":
+				delete++;
+				break;
+			case "DE":
+				deposit++;
+				break;
+			case "WD":
+				withdraw++;
+				break;
+			case "TR":
+				transfer++;
+				break;
+			default:
+				endSession++;
+			}
+		}
+	}
+
+	@Name("simbank.EndOfSession")
+	@Label("End Of Session")
+	@Category({ "SimBank", "Back Office" })
+	@Description("Output files written at the end of the session")
+	static class EndOfSession extends Event {
+		@Label("Accounts")
+		int accounts;
+	}
+
+	@Name("simbank.SessionWrite")
+	@Label("Session Write")
+	@Category({ "SimBank", "Back Office" })
+	@Description("One output file written at the end of the session, with the files written next to it")
+	static class SessionWrite extends Event {
+		@Label("Kind")
+		String kind;
+
+		@Label("File")
+		String file;
+	}
+
+	@Name("simbank.Login")
+	@Label("Login")
+	@Category({ "SimBank", "Front End" })
+	@Description("Front end login after the user answered its prompts, reading the valid accounts file and opening the session")
+	static class Login extends Event {
+		@Label("Agent")
+		boolean agent;
+
+		@Label("Accounts")
+		int accounts;
+	}
+
+	@Name("simbank.Logout")
+	@Label("Logout")
+	@Category({ "SimBank", "Front End" })
+	@Description("Front end logout, including writing the transaction summary file")
+	static class Logout extends Event {
+		@Label("Transactions")
+		int transactions;
+	}
+
+	@Name("simbank.TransactionSummaryWrite")
+	@Label("Transaction Summary Write")
+	@Category({ "SimBank", "Front End" })
+	@Description("Transaction summary file written at logout")
+	static class TransactionSummaryWrite extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Transactions")
+		int transactions;
+	}
+}
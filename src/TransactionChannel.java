@@ -0,0 +1,281 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The TransactionChannel carries accepted transactions from a Front End
+ * session to a Back Office running in intraday mode, as a reactive stream
+ * with backpressure over a loopback socket.
+ *
+ * Demand travels from the Back Office to the Front End: the Back Office side
+ * is a Flow.Publisher (RemotePublisher) whose subscription sends every
+ * request(n) to the Front End, and the Front End side is a Flow.Subscriber
+ * (Sender) that passes the requests on to the session's publisher and writes
+ * every transaction it is given to the socket. A Front End therefore never
+ * has more transactions in flight than the Back Office asked for, and once
+ * the session's publisher buffer is full, accepting a transaction waits
+ * until the Back Office has caught up.
+ *
+ * The Back Office confirms every transaction once it applied it, and the
+ * Front End leaves the confirmed transactions out of its transaction
+ * summary file, so the nightly run does not apply them a second time. A
+ * session that loses its channel keeps the unconfirmed rest in the summary
+ * file, and the Back Office applies none of the session's transactions it
+ * had not applied yet when the channel was lost. Channel failures are
+ * logged on standard error by both sides.
+ *
+ * One line at a time in each direction:
+ *
+ * PUBLISH						front end to back office, starts a session
+ * EOD							control client to back office, ends the day
+ * REQUEST <n>					back office to front end, demand for n more
+ * TX <transaction>				front end to back office
+ * APPLIED <n>					back office to front end, the first n
+ * 								transactions of the session are applied
+ * DONE							the session ended / the day was written
+ *
+ * Usage:
+ * TransactionChannel eod <port>		ends the day of the back office on the port
+ */
+public class TransactionChannel {
+
+	private TransactionChannel() {
+	}
+
+	/**
+	 * front end side, writes the transactions of a session to the back office
+	 */
+	static class Sender implements Flow.Subscriber<String> {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintWriter out;
+		private Flow.Subscription subscription;
+
+		// transactions the back office confirmed, final once the channel ended,
+		// and whether the session sent all of its transactions
+		private volatile long confirmed;
+		private volatile boolean completed;
+		private final CountDownLatch ended = new CountDownLatch(1);
+
+		/**
+		 * @param port - port of the back office on the loopback interface
+		 * @throws IOException
+		 */
+		Sender(int port) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			out.write("PUBLISH\n");
+			out.flush();
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			Thread demand = new Thread(this::readDemand, "transaction-channel-demand");
+			demand.setDaemon(true);
+			demand.start();
+		}
+
+		/**
+		 * passes the back office's requests on to the session's publisher and
+		 * records its confirmations, until the back office closes the channel
+		 */
+		private void readDemand() {
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("REQUEST "))
+						subscription.request(Long.parseLong(line.substring(8)));
+					else if (line.startsWith("APPLIED "))
+						confirmed = Long.parseLong(line.substring(8));
+					else
+						throw new IOException("unexpected line " + line);
+				}
+				if (!completed)
+					System.err.println("Transaction channel failed: the back office closed it");
+			} catch (IOException | NumberFormatException e) {
+				if (!socket.isClosed())
+					System.err.println("Transaction channel failed: " + e.getMessage());
+			}
+			subscription.cancel();
+			close();
+			ended.countDown();
+		}
+
+		public void onNext(String transaction) {
+			out.write("TX " + transaction + "\n");
+			out.flush();
+			if (out.checkError()) {
+				System.err.println("Transaction channel failed: could not send " + transaction);
+				subscription.cancel();
+				close();
+			}
+		}
+
+		public void onError(Throwable throwable) {
+			System.err.println("Transaction channel failed: " + throwable.getMessage());
+			close();
+		}
+
+		/**
+		 * the back office confirms the last transactions and closes the channel
+		 */
+		public void onComplete() {
+			completed = true;
+			out.write("DONE\n");
+			out.flush();
+		}
+
+		/**
+		 * @return number of the session's first transactions the back office
+		 * applied, waits until the channel ended
+		 * @throws InterruptedException
+		 */
+		long confirmed() throws InterruptedException {
+			ended.await();
+			return confirmed;
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	/**
+	 * back office side, publishes the transactions a front end session sends
+	 */
+	static class RemotePublisher implements Flow.Publisher<String> {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintWriter out;
+		private final AtomicBoolean subscribed = new AtomicBoolean();
+
+		/**
+		 * @param socket - accepted connection whose PUBLISH line was read
+		 * @param in - reader of the connection
+		 */
+		RemotePublisher(Socket socket, BufferedReader in) throws IOException {
+			this.socket = socket;
+			this.in = in;
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @param applied - number of the session's first transactions applied
+		 *
+		 * confirms the transactions to the front end, so it leaves them out
+		 * of its summary file
+		 */
+		void confirm(long applied) {
+			synchronized (out) {
+				out.write("APPLIED " + applied + "\n");
+				out.flush();
+			}
+		}
+
+		/**
+		 * closes the channel once the session's transactions are confirmed
+		 */
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		/**
+		 * @param subscriber - receives the transactions on a thread of the
+		 * connection, in the order the session accepted them
+		 */
+		public void subscribe(Flow.Subscriber<? super String> subscriber) {
+			if (!subscribed.compareAndSet(false, true)) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(long n) {
+					}
+
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("a session has one subscriber"));
+				return;
+			}
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+					if (n <= 0) {
+						cancel();
+						subscriber.onError(new IllegalArgumentException("non-positive request"));
+						return;
+					}
+					synchronized (out) {
+						out.write("REQUEST " + n + "\n");
+						out.flush();
+					}
+				}
+
+				public void cancel() {
+					close();
+				}
+			});
+			Thread reader = new Thread(() -> {
+				try {
+					String line;
+					while ((line = in.readLine()) != null && line.startsWith("TX "))
+						subscriber.onNext(line.substring(3));
+					if ("DONE".equals(line))
+						subscriber.onComplete();
+					else
+						subscriber.onError(new IOException("session closed without DONE"));
+				} catch (IOException e) {
+					subscriber.onError(e);
+				}
+			}, "transaction-channel-" + socket.getPort());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * @param port - port of the back office on the loopback interface
+	 * @return true once the back office wrote the output files of the day
+	 * @throws IOException
+	 */
+	static boolean endOfDay(int port) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			socket.getOutputStream().write("EOD\n".getBytes(StandardCharsets.UTF_8));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			return "DONE".equals(in.readLine());
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = eod
+	 * args[1] = port of the back office
+	 */
+	public static void main(String[] args) {
+		try {
+			if (!args[0].equals("eod"))
+				throw new IllegalArgumentException();
+			System.out.println(endOfDay(Integer.parseInt(args[1])) ? "DONE" : "End of day failed.");
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid arguments.");
+		} catch (IOException e) {
+			System.out.println("Could not connect to the back office.");
+		}
+	}
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The TransactionJournal is an append only binary record of every transaction
+ * the Back Office applied or rejected, with the balances of the accounts
+ * involved before and after the transaction.
+ *
+ * Starting from the MAF a run was given, replaying the journal up to any
+ * record rebuilds the accounts as they were at that point of the run. Replay
+ * does not re-run the transactions, it memory maps the journal, reads it
+ * sequentially and sets the recorded after balances.
+ *
+ * The file starts with a 16 byte header (magic, version, record size) followed
+ * by fixed 64 byte records:
+ *
+ * byte op, byte applied, short name length,
+ * int account 1, int account 2, int amount,
+ * int before 1, int after 1, int before 2, int after 2,
+ * 32 bytes of name
+ *
+ * A balance of NO_ACCOUNT means the account did not exist.
+ */
+public class TransactionJournal {
+
+	public static final int NO_ACCOUNT = Integer.MIN_VALUE;
+
+	static final int RECORD = 64;
+	private static final int HEADER = 16,
+							 MAGIC = 0x53424a31, // "SBJ1"
+							 VERSION = 1,
+							 NAME = 32,
+							 BATCH = RECORD * 1024;
+
+	// op codes, in the order of the transaction codes of the summary file
+	static final byte CR = 1, DL = 2, DE = 3, WD = 4, TR = 5, ES = 6;
+
+	// replay maps this many records at a time
+	private static final long SEGMENT = RECORD * (1L << 20);
+
+	private final FileChannel out;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH);
+	private long records;
+
+	/**
+	 * @param fileName - name of the journal, an existing journal is replaced
+	 * @throws IOException
+	 */
+	public TransactionJournal(String fileName) throws IOException {
+		out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).putInt(RECORD).putInt(0).flip();
+		while (header.hasRemaining())
+			out.write(header);
+	}
+
+	/**
+	 * @param fileName - name of an existing journal
+	 * @param keep - number of records to keep, later records are dropped
+	 * @throws IOException
+	 *
+	 * reopens a journal to continue it from a checkpoint
+	 */
+	public TransactionJournal(String fileName, long keep) throws IOException {
+		out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (out.size() < HEADER + keep * RECORD) {
+			out.close();
+			throw new IOException("journal is shorter than the checkpoint: " + fileName);
+		}
+		out.truncate(HEADER + keep * RECORD);
+		out.position(HEADER + keep * RECORD);
+		records = keep;
+	}
+
+	/**
+	 * @param cmd - two letter transaction code
+	 * @param applied - true if the transaction succeeded
+	 * @param aNum1
+	 * @param aNum2
+	 * @param money
+	 * @param name
+	 * @param before1 - balance of the first account before, or NO_ACCOUNT
+	 * @param after1 - balance of the first account after, or NO_ACCOUNT
+	 * @param before2 - balance of the second account before, or NO_ACCOUNT
+	 * @param after2 - balance of the second account after, or NO_ACCOUNT
+	 * @throws IOException
+	 */
+	public void record(String cmd, boolean applied, int aNum1, int aNum2, int money, String name,
+			int before1, int after1, int before2, int after2) throws IOException {
+		if (!buffer.hasRemaining())
+			flush();
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		int nameLength = Math.min(NAME, nameBytes.length);
+		buffer.put(opCode(cmd)).put((byte) (applied ? 1 : 0)).putShort((short) nameLength)
+			  .putInt(aNum1).putInt(aNum2).putInt(money)
+			  .putInt(before1).putInt(after1).putInt(before2).putInt(after2)
+			  .put(nameBytes, 0, nameLength);
+		for (int i = nameLength; i < NAME; i++)
+			buffer.put((byte) 0);
+		records++;
+	}
+
+	/**
+	 * @return number of records written
+	 */
+	public long size() {
+		return records;
+	}
+
+	/**
+	 * @throws IOException
+	 *
+	 * writes the buffered records to the file
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @throws IOException
+	 *
+	 * writes the buffered records and closes the journal
+	 */
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	private static byte opCode(String cmd) {
+		switch (cmd) {
+		case "CR":
+			return CR;
+		case "DL":
+			return DL;
+		case "DE":
+			return DE;
+		case "WD":
+			return WD;
+		case "TR":
+			return TR;
+		default:
+			return ES;
+		}
+	}
+
+	/**
+	 * @param journal - journal written by the run that started from the MAF
+	 * the accounts were loaded from
+	 * @param accounts - accounts loaded from that MAF
+	 * @param limit - number of records to replay, or -1 for all of them
+	 * @return number of records replayed
+	 * @throws IOException
+	 *
+	 * sets every account touched by an applied transaction to its recorded
+	 * after balance, creating and deleting accounts as recorded
+	 */
+	public static long replay(Path journal, AccountStore accounts, long limit) throws IOException {
+		try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining() && in.read(header) >= 0);
+			header.flip();
+			if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION
+					|| header.getInt() != RECORD)
+				throw new IOException("not a transaction journal: " + journal);
+
+			long total = (in.size() - HEADER) / RECORD;
+			if (limit >= 0)
+				total = Math.min(total, limit);
+
+			byte[] name = new byte[NAME];
+			for (long first = 0; first < total; first += SEGMENT / RECORD) {
+				long count = Math.min(total - first, SEGMENT / RECORD);
+				MappedByteBuffer segment = in.map(FileChannel.MapMode.READ_ONLY, HEADER + first * RECORD,
+						count * RECORD);
+				for (int r = 0; r < count; r++)
+					apply(segment, r * RECORD, accounts, name);
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * @param segment
+	 * @param at - offset of the record in the segment
+	 * @param accounts
+	 * @param name - scratch space for the name bytes
+	 */
+	private static void apply(ByteBuffer segment, int at, AccountStore accounts, byte[] name) {
+		if (segment.get(at + 1) == 0) // rejected, nothing changed
+			return;
+		byte op = segment.get(at);
+		int aNum1 = segment.getInt(at + 4),
+			aNum2 = segment.getInt(at + 8),
+			after1 = segment.getInt(at + 20),
+			after2 = segment.getInt(at + 28);
+		switch (op) {
+		case CR:
+			int length = segment.getShort(at + 2);
+			for (int i = 0; i < length; i++)
+				name[i] = segment.get(at + 32 + i);
+			accounts.put(new Account(aNum1, after1, new String(name, 0, length, StandardCharsets.UTF_8)));
+			break;
+		case DL:
+			accounts.remove(aNum1);
+			break;
+		case DE:
+		case WD:
+			accounts.setBalance(aNum1, after1);
+			break;
+		case TR:
+			accounts.setBalance(aNum1, after1);
+			accounts.setBalance(aNum2, after2);
+			break;
+		}
+	}
+
+//----------------------------MAIN--------------------------
+	/**
+	 * @param args -
+	 * args[0] = master accounts file the journaled run started from
+	 * args[1] = journal file name
+	 * args[2] = name of outputted accounts file
+	 * args[3] = name of outputted Master Accounts File
+	 * args[4] = number of records to replay, all of them if not given
+	 */
+	public static void main(String[] args) {
+		try {
+			long limit = args.length > 4 ? Long.parseLong(args[4]) : -1;
+			new BackOffice_NCR(args[0], Integer.MIN_VALUE, Integer.MAX_VALUE)
+					.replayJournal(args[1], limit, args[2], args[3]);
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			System.out.println("Invalid arguments.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Could not replay the journal.");
+			System.exit(0);
+		}
+	}
+}
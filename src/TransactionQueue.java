@@ -0,0 +1,69 @@
+import java.util.ArrayDeque;
+
+/**
+ * A TransactionQueue holds the transactions of a merged transaction summary
+ * file in the order the Back Office applies them, every one as a line of the
+ * text format.
+ *
+ * A text summary is queued as its lines (Lines), a binary one as its
+ * undecoded records (BinarySummary.Records), which are only decoded when
+ * they reach the head of the queue.
+ */
+public interface TransactionQueue {
+
+	/**
+	 * @return the transaction at the head of the queue, or null if the queue
+	 * is empty
+	 */
+	String peek();
+
+	/**
+	 * @return the transaction at the head of the queue, removed, or null if
+	 * the queue is empty
+	 */
+	String poll();
+
+	/**
+	 * @return number of transactions queued
+	 */
+	int size();
+
+	default boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * drops every queued transaction
+	 */
+	void clear();
+
+	/**
+	 * queue of the lines of a text summary
+	 */
+	class Lines implements TransactionQueue {
+		private final ArrayDeque<String> lines = new ArrayDeque<String>();
+
+		/**
+		 * @param line - transaction line, without its line break
+		 */
+		public void add(String line) {
+			lines.add(line);
+		}
+
+		public String peek() {
+			return lines.peek();
+		}
+
+		public String poll() {
+			return lines.poll();
+		}
+
+		public int size() {
+			return lines.size();
+		}
+
+		public void clear() {
+			lines.clear();
+		}
+	}
+}
@@ -0,0 +1,352 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * The VelocityDetector flags accounts with bursts of debits (withdrawals and
+ * the paying side of transfers) while the Back Office applies them, so a
+ * burst does not have to be found by scanning the merged transaction summary
+ * file again.
+ *
+ * An account is flagged when, within the last window transactions of the
+ * day, it was debited maxDebits times or by more than maxAmount cents in
+ * total. It is flagged once per burst and can be flagged again after its
+ * debits in the window dropped below both limits.
+ *
+ * The state of every debited account is a ring of its last maxDebits debits
+ * (position and amount), which is all the limits can ever need: with fewer
+ * debits than that in the window, every debit of the window is in the ring.
+ * The rings live in primitive arrays next to an open addressing table of
+ * account numbers, nothing is allocated per transaction. Every observed
+ * transaction also checks the next SWEEP slots of the table and removes
+ * accounts whose last debit left the window, so idle accounts do not stay
+ * and the table only holds the recently debited ones.
+ *
+ * The whole state can be saved with state() and restored with restore(), so
+ * a Back Office resumed from a checkpoint flags exactly what the run it
+ * resumes would have.
+ */
+public class VelocityDetector {
+
+	// table slots checked for idle accounts per observed transaction
+	private static final int SWEEP = 2;
+
+	private final int window, maxDebits;
+	private final long maxAmount;
+
+	// table of debited accounts, key 0 marks a free slot
+	private int[] keys;
+	private long[] sums;		// debits of the ring inside the window, in cents
+	private int[] heads,		// ring index of the oldest debit
+				  counts;		// debits in the ring
+	private boolean[] flagged;	// flagged and not yet back below the limits
+	private long[] positions;	// ring of slot i starts at i * maxDebits
+	private int[] amounts;
+	private int size, sweep;
+
+	private long position; // transactions observed today
+	private int alerts;
+	private final StringBuilder log = new StringBuilder();
+
+	/**
+	 * @param window - number of transactions the limits apply to
+	 * @param maxDebits - debits within the window that flag an account
+	 * @param maxAmount - total debited within the window above which an
+	 * account is flagged, in cents
+	 */
+	public VelocityDetector(int window, int maxDebits, long maxAmount) {
+		if (window < 1 || maxDebits < 1)
+			throw new IllegalArgumentException("window and debits must be positive");
+		this.window = window;
+		this.maxDebits = maxDebits;
+		this.maxAmount = maxAmount;
+		allocate(64);
+	}
+
+	/**
+	 * @param debit - true if the transaction took money from the account
+	 * @param accountNum - account the money was taken from
+	 * @param amount - amount taken, in cents
+	 * @return true if the transaction flagged the account
+	 *
+	 * called for every applied transaction, in order, so the window counts
+	 * all of them and not only debits
+	 */
+	public boolean observe(boolean debit, int accountNum, int amount) {
+		position++;
+		for (int i = 0; i < SWEEP && size > 0; i++)
+			sweepNext();
+		if (!debit)
+			return false;
+
+		int slot = slot(accountNum);
+		if (keys[slot] == 0) {
+			if ((size + 1) * 2 > keys.length) {
+				rehash(keys.length * 2);
+				slot = slot(accountNum);
+			}
+			keys[slot] = accountNum;
+			size++;
+		}
+		expire(slot);
+		if (counts[slot] < maxDebits && sums[slot] <= maxAmount)
+			flagged[slot] = false; // the burst ended since the last debit
+		int base = slot * maxDebits;
+		if (counts[slot] == maxDebits) { // ring full, the oldest debit makes room
+			sums[slot] -= amounts[base + heads[slot]];
+			heads[slot] = (heads[slot] + 1) % maxDebits;
+			counts[slot]--;
+		}
+		int tail = base + (heads[slot] + counts[slot]) % maxDebits;
+		positions[tail] = position;
+		amounts[tail] = amount;
+		counts[slot]++;
+		sums[slot] += amount;
+
+		if (flagged[slot] || (counts[slot] < maxDebits && sums[slot] <= maxAmount))
+			return false;
+		flagged[slot] = true;
+		alerts++;
+		log.append("VELOCITY ").append(accountNum).append(' ').append(counts[slot]).append(' ')
+				.append(sums[slot]).append(' ').append(position).append('\n');
+		return true;
+	}
+
+	/**
+	 * @return number of accounts flagged today
+	 */
+	public int alerts() {
+		return alerts;
+	}
+
+	/**
+	 * @return number of accounts currently tracked
+	 */
+	public int tracked() {
+		return size;
+	}
+
+	/**
+	 * forgets all debits and alerts, for the next day
+	 */
+	public void clear() {
+		allocate(64);
+		position = 0;
+		alerts = 0;
+		log.setLength(0);
+	}
+
+	/**
+	 * @return the rings, the table and the alerts so far, used to save them
+	 * in a checkpoint
+	 */
+	byte[] state() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(window);
+			out.writeInt(maxDebits);
+			out.writeLong(maxAmount);
+			out.writeLong(position);
+			out.writeInt(alerts);
+			out.writeInt(size);
+			out.writeInt(sweep);
+			out.writeInt(keys.length);
+			for (int slot = 0; slot < keys.length; slot++) {
+				out.writeInt(keys[slot]);
+				if (keys[slot] == 0)
+					continue;
+				out.writeLong(sums[slot]);
+				out.writeInt(heads[slot]);
+				out.writeInt(counts[slot]);
+				out.writeBoolean(flagged[slot]);
+				for (int i = slot * maxDebits; i < (slot + 1) * maxDebits; i++) {
+					out.writeLong(positions[i]);
+					out.writeInt(amounts[i]);
+				}
+			}
+			byte[] text = log.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(text.length);
+			out.write(text);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // a byte array can not fail
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param state - state as returned by state()
+	 * @throws IOException if the state was saved with other limits
+	 *
+	 * restores the state saved in a checkpoint
+	 */
+	void restore(byte[] state) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+		if (in.readInt() != window || in.readInt() != maxDebits || in.readLong() != maxAmount)
+			throw new IOException("velocity state saved with other limits");
+		position = in.readLong();
+		alerts = in.readInt();
+		int tracked = in.readInt(),
+			cursor = in.readInt();
+		allocate(in.readInt());
+		size = tracked;
+		sweep = cursor;
+		for (int slot = 0; slot < keys.length; slot++) {
+			keys[slot] = in.readInt();
+			if (keys[slot] == 0)
+				continue;
+			sums[slot] = in.readLong();
+			heads[slot] = in.readInt();
+			counts[slot] = in.readInt();
+			flagged[slot] = in.readBoolean();
+			for (int i = slot * maxDebits; i < (slot + 1) * maxDebits; i++) {
+				positions[i] = in.readLong();
+				amounts[i] = in.readInt();
+			}
+		}
+		byte[] text = new byte[in.readInt()];
+		in.readFully(text);
+		log.setLength(0);
+		log.append(new String(text, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param fileName - name of the alert file
+	 *
+	 * writes one line per flagged burst: VELOCITY <account> <debits in the
+	 * window> <amount in the window> <position of the flagging transaction>,
+	 * through a temporary file that replaces the old one when complete
+	 */
+	public void write(String fileName) {
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(fileName + ".tmp");
+			out.write(log.toString());
+			out.close();
+			if (out.checkError())
+				throw new IOException("could not write " + fileName);
+			AccountFileWriter.replace(Paths.get(fileName + ".tmp"), Paths.get(fileName));
+		} catch (IOException e) {
+			System.out.println("Could not write to file.");
+		} finally {
+			if (out != null)
+				out.close();
+		}
+	}
+
+	/**
+	 * drops the debits of the slot's ring that left the window
+	 */
+	private void expire(int slot) {
+		int base = slot * maxDebits;
+		while (counts[slot] > 0 && positions[base + heads[slot]] <= position - window) {
+			sums[slot] -= amounts[base + heads[slot]];
+			heads[slot] = (heads[slot] + 1) % maxDebits;
+			counts[slot]--;
+		}
+	}
+
+	/**
+	 * checks the slot under the sweep cursor and removes its account if its
+	 * last debit left the window, the cursor stays on a slot that a removal
+	 * filled again
+	 */
+	private void sweepNext() {
+		int slot = sweep;
+		if (keys[slot] != 0) {
+			int last = slot * maxDebits + (heads[slot] + counts[slot] - 1) % maxDebits;
+			if (counts[slot] == 0 || positions[last] <= position - window) {
+				remove(slot);
+				if (keys[slot] != 0)
+					return;
+			}
+		}
+		sweep = (slot + 1) & (keys.length - 1);
+	}
+
+	/**
+	 * removes the account in the slot, moving back later accounts of its
+	 * probe sequence so no lookup misses them
+	 */
+	private void remove(int slot) {
+		int mask = keys.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+			int home = hash(keys[next]) & mask;
+			// the account may move to the hole if its home is not between the
+			// hole and its slot, cyclically
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				move(next, hole);
+				hole = next;
+			}
+		}
+		keys[hole] = 0;
+		sums[hole] = 0;
+		heads[hole] = 0;
+		counts[hole] = 0;
+		flagged[hole] = false;
+		size--;
+	}
+
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		sums[to] = sums[from];
+		heads[to] = heads[from];
+		counts[to] = counts[from];
+		flagged[to] = flagged[from];
+		System.arraycopy(positions, from * maxDebits, positions, to * maxDebits, maxDebits);
+		System.arraycopy(amounts, from * maxDebits, amounts, to * maxDebits, maxDebits);
+	}
+
+	/**
+	 * @return slot of the account, or the free slot it would be put in
+	 */
+	private int slot(int accountNum) {
+		int mask = keys.length - 1;
+		int slot = hash(accountNum) & mask;
+		while (keys[slot] != 0 && keys[slot] != accountNum)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private static int hash(int accountNum) {
+		int h = accountNum * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		sums = new long[capacity];
+		heads = new int[capacity];
+		counts = new int[capacity];
+		flagged = new boolean[capacity];
+		positions = new long[capacity * maxDebits];
+		amounts = new int[capacity * maxDebits];
+		size = 0;
+		sweep = 0;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys, oldHeads = heads, oldCounts = counts, oldAmounts = amounts;
+		long[] oldSums = sums, oldPositions = positions;
+		boolean[] oldFlagged = flagged;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == 0)
+				continue;
+			int slot = slot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			sums[slot] = oldSums[i];
+			heads[slot] = oldHeads[i];
+			counts[slot] = oldCounts[i];
+			flagged[slot] = oldFlagged[i];
+			System.arraycopy(oldPositions, i * maxDebits, positions, slot * maxDebits, maxDebits);
+			System.arraycopy(oldAmounts, i * maxDebits, amounts, slot * maxDebits, maxDebits);
+			size++;
+		}
+	}
+}